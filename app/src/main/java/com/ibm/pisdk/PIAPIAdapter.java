@@ -17,8 +17,11 @@
 package com.ibm.pisdk;
 
 import android.content.Context;
-import android.graphics.BitmapFactory;
+import android.graphics.Bitmap;
 import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
 import android.util.Base64;
 
 import com.ibm.json.java.JSONArray;
@@ -36,6 +39,18 @@ import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * This class provides an interface with the Presence Insights APIs.
@@ -58,6 +73,21 @@ public class PIAPIAdapter implements Serializable {
     static final private int READ_TIMEOUT_IN_MILLISECONDS = 7000; /* milliseconds */
     static final private int CONNECTION_TIMEOUT_IN_MILLISECONDS = 7000; /* milliseconds */
 
+    static final int MANAGEMENT_POOL_SIZE = 4;
+    static final private int CONNECTOR_POOL_SIZE = 2;
+    static final private int EXECUTOR_QUEUE_CAPACITY = 64;
+    static final private int EXECUTOR_KEEP_ALIVE_IN_SECONDS = 30;
+
+    static final private int MANAGEMENT_MAX_ATTEMPTS = 3;
+    static final private int CONNECTOR_MAX_ATTEMPTS = 2;
+    static final private long RETRY_BASE_DELAY_IN_MILLISECONDS = 1000; /* milliseconds */
+    static final private long RETRY_MAX_DELAY_IN_MILLISECONDS = 8000; /* milliseconds */
+    static final private int CIRCUIT_FAILURE_THRESHOLD = 5;
+    static final private long CIRCUIT_OPEN_IN_MILLISECONDS = 60000; /* milliseconds */
+
+    static final private long FLOOR_MAP_DISK_CACHE_SIZE = 20 * 1024 * 1024; /* bytes */
+    static final private long FLOOR_MAP_TIME_TO_LIVE = 24 * 60 * 60 * 1000; /* milliseconds */
+
     // mContext will be nice to have if we want to do any kind of UI actions for them.  For example,
     // we could provide them the option to throw up a progress indicator while the async tasks are running.
     private final transient Context mContext;
@@ -66,9 +96,111 @@ public class PIAPIAdapter implements Serializable {
     private final String mConnectorURL;
     private final String mTenantCode;
     private final String mOrgCode;
+    // tells adapters for the same organization apart in PIAPIAdapterRegistry
+    private final String mInstanceId = UUID.randomUUID().toString();
 
     private final String mBasicAuth;
 
+    // Requests run on executors owned by the adapter rather than on AsyncTask's process-wide serial
+    // executor, so a slow floor map download can't hold up beacon notifications (or the app's own
+    // AsyncTasks).  Management reads and connector uploads get separate lanes.  Executors don't
+    // survive serialization, so they are created lazily on first use.
+    private transient Executor mManagementExecutor;
+    private transient Executor mConnectorExecutor;
+    // all requests go through the transport, it owns the connection pool
+    private transient PITransport mTransport;
+    // validators and parsed results for conditional GETs
+    private transient PIResponseCache mResponseCache;
+    // optional on-disk copy of the venue configuration
+    private transient PIVenueCache mVenueCache;
+    // decoded floor maps in memory, raw images on disk
+    private transient PIFloorMapCache mFloorMapCache;
+    // callers waiting on identical GETs that are already in flight
+    private transient PIRequestCoalescer mCoalescer;
+    // retries and fail-fast, one of each per lane
+    private transient PIRetryPolicy mManagementRetryPolicy;
+    private transient PIRetryPolicy mConnectorRetryPolicy;
+    private transient PICircuitBreaker mManagementCircuitBreaker;
+    private transient PICircuitBreaker mConnectorCircuitBreaker;
+    // waits out retry delays, then hands the attempt back to its lane
+    private transient ScheduledExecutorService mRetryScheduler;
+    // completion handlers are called here
+    private transient Handler mMainHandler;
+
+    // each lane has its own executor, retry policy and circuit breaker
+    private enum Lane {
+        MANAGEMENT,
+        CONNECTOR
+    }
+
+    private static final PITransport.ResponseReader STRING_READER = new PITransport.ResponseReader() {
+        @Override
+        public Object read(InputStream in) throws IOException {
+            return PIHttpTransport.readString(in);
+        }
+    };
+    private static final PITransport.ResponseReader JSON_READER = PIDocumentReader.json();
+    private static final PITransport.ResponseReader PROXIMITY_UUIDS_READER = PIDocumentReader.strings();
+
+    // doctypes are decoded straight off the response stream, see PIDocumentReader
+    private static final PIDocumentReader.Factory<PIOrg> ORG_FACTORY = new PIDocumentReader.Factory<PIOrg>() {
+        @Override
+        public PIOrg create(JSONObject document) {
+            return new PIOrg(document);
+        }
+    };
+    private static final PIDocumentReader.Factory<PISite> SITE_FACTORY = new PIDocumentReader.Factory<PISite>() {
+        @Override
+        public PISite create(JSONObject document) {
+            return new PISite(document);
+        }
+    };
+    private static final PIDocumentReader.Factory<PIFloor> FLOOR_FACTORY = new PIDocumentReader.Factory<PIFloor>() {
+        @Override
+        public PIFloor create(JSONObject document) {
+            return new PIFloor(document);
+        }
+    };
+    private static final PIDocumentReader.Factory<PIDevice> DEVICE_FACTORY = new PIDocumentReader.Factory<PIDevice>() {
+        @Override
+        public PIDevice create(JSONObject document) {
+            return new PIDevice(document);
+        }
+    };
+    private static final PIDocumentReader.Factory<PIZone> ZONE_FACTORY = new PIDocumentReader.Factory<PIZone>() {
+        @Override
+        public PIZone create(JSONObject document) {
+            return new PIZone(document);
+        }
+    };
+    private static final PIDocumentReader.Factory<PIBeacon> BEACON_FACTORY = new PIDocumentReader.Factory<PIBeacon>() {
+        @Override
+        public PIBeacon create(JSONObject document) {
+            return new PIBeacon(document);
+        }
+    };
+    private static final PIDocumentReader.Factory<PISensor> SENSOR_FACTORY = new PIDocumentReader.Factory<PISensor>() {
+        @Override
+        public PISensor create(JSONObject document) {
+            return new PISensor(document);
+        }
+    };
+
+    private static final PITransport.ResponseReader ORGS_READER = PIDocumentReader.list(JSON_ROWS, ORG_FACTORY);
+    private static final PITransport.ResponseReader ORG_READER = PIDocumentReader.document(ORG_FACTORY);
+    private static final PITransport.ResponseReader SITES_READER = PIDocumentReader.list(JSON_ROWS, SITE_FACTORY);
+    private static final PITransport.ResponseReader SITE_READER = PIDocumentReader.document(SITE_FACTORY);
+    private static final PITransport.ResponseReader FLOORS_READER = PIDocumentReader.list(JSON_FEATURES, FLOOR_FACTORY);
+    private static final PITransport.ResponseReader FLOOR_READER = PIDocumentReader.document(FLOOR_FACTORY);
+    private static final PITransport.ResponseReader DEVICES_READER = PIDocumentReader.list(JSON_ROWS, DEVICE_FACTORY);
+    private static final PITransport.ResponseReader DEVICE_READER = PIDocumentReader.document(DEVICE_FACTORY);
+    private static final PITransport.ResponseReader ZONES_READER = PIDocumentReader.list(JSON_FEATURES, ZONE_FACTORY);
+    private static final PITransport.ResponseReader ZONE_READER = PIDocumentReader.document(ZONE_FACTORY);
+    private static final PITransport.ResponseReader BEACONS_READER = PIDocumentReader.list(JSON_FEATURES, BEACON_FACTORY);
+    private static final PITransport.ResponseReader BEACON_READER = PIDocumentReader.document(BEACON_FACTORY);
+    private static final PITransport.ResponseReader SENSORS_READER = PIDocumentReader.list(JSON_FEATURES, SENSOR_FACTORY);
+    private static final PITransport.ResponseReader SENSOR_READER = PIDocumentReader.document(SENSOR_FACTORY);
+
     /**
      * Constructor
      *
@@ -80,7 +212,8 @@ public class PIAPIAdapter implements Serializable {
      * @param orgCode unique identifier for the organization
      */
     public PIAPIAdapter(Context context, String username, String password, String hostname, String tenantCode, String orgCode){
-        mContext = context;
+        // the adapter outlives the activity that creates it
+        mContext = context != null ? context.getApplicationContext() : null;
         mBasicAuth = generateBasicAuth(username, password);
         mServerURL = hostname + MANAGEMENT_SERVER_PATH;
         mServerURL_v2 = hostname + MANAGEMENT_SERVER_PATH_v2;
@@ -89,6 +222,126 @@ public class PIAPIAdapter implements Serializable {
         mOrgCode = orgCode;
     }
 
+    /**
+     * @return the handle the adapter is registered under in PIAPIAdapterRegistry, unique to this
+     * instance and without credentials
+     */
+    String getHandle() {
+        return mServerURL + "/tenants/" + mTenantCode + "/orgs/" + mOrgCode + "#" + mInstanceId;
+    }
+
+    /**
+     * Sets the executor that runs management server requests (all the getters, device registration
+     * and the floor map).  By default the adapter uses its own bounded pool of
+     * four threads.
+     *
+     * @param executor executor to run management requests on, or null to restore the default.
+     */
+    public synchronized void setManagementExecutor(Executor executor) {
+        mManagementExecutor = executor;
+    }
+
+    /**
+     * Sets the executor that runs beacon connector uploads.  By default the adapter uses its own
+     * bounded pool of two threads, separate from the management requests.
+     *
+     * @param executor executor to run connector uploads on, or null to restore the default.
+     */
+    public synchronized void setConnectorExecutor(Executor executor) {
+        mConnectorExecutor = executor;
+    }
+
+    /**
+     * Sets the retry policy for management server requests.  By default a request is attempted up to
+     * three times.
+     *
+     * @param retryPolicy retry policy, or null to restore the default.
+     */
+    public synchronized void setManagementRetryPolicy(PIRetryPolicy retryPolicy) {
+        mManagementRetryPolicy = retryPolicy;
+    }
+
+    /**
+     * Sets the retry policy for beacon connector uploads.  By default an upload is attempted up to
+     * twice, and only retried when it never reached the server.
+     *
+     * @param retryPolicy retry policy, or null to restore the default.
+     */
+    public synchronized void setConnectorRetryPolicy(PIRetryPolicy retryPolicy) {
+        mConnectorRetryPolicy = retryPolicy;
+    }
+
+    /**
+     * Returns the circuit breaker guarding management server requests.  It opens after five
+     * consecutive failures and stays open for a minute, during which requests fail immediately.
+     *
+     * @return circuit breaker for management requests
+     */
+    public synchronized PICircuitBreaker getManagementCircuitBreaker() {
+        if (mManagementCircuitBreaker == null) {
+            mManagementCircuitBreaker = new PICircuitBreaker(CIRCUIT_FAILURE_THRESHOLD, CIRCUIT_OPEN_IN_MILLISECONDS);
+        }
+        return mManagementCircuitBreaker;
+    }
+
+    /**
+     * Returns the circuit breaker guarding beacon connector uploads.  It opens after five consecutive
+     * failures and stays open for a minute, during which uploads fail without being sent.
+     *
+     * @return circuit breaker for connector uploads
+     */
+    public synchronized PICircuitBreaker getConnectorCircuitBreaker() {
+        if (mConnectorCircuitBreaker == null) {
+            mConnectorCircuitBreaker = new PICircuitBreaker(CIRCUIT_FAILURE_THRESHOLD, CIRCUIT_OPEN_IN_MILLISECONDS);
+        }
+        return mConnectorCircuitBreaker;
+    }
+
+    /**
+     * Sets the transport used to perform HTTP requests.  By default the adapter uses
+     * {@link PIHttpTransport PIHttpTransport}, which reuses keep-alive connections per host.
+     *
+     * @param transport transport to perform requests with, or null to restore the default.
+     */
+    public synchronized void setTransport(PITransport transport) {
+        mTransport = transport;
+    }
+
+    /**
+     * Sets a disk cache for venue configuration: the org, its sites and proximity UUIDs, and the
+     * floors, zones, beacons and sensors of each site.  Cached venue configuration is returned
+     * immediately, and refreshed from the server in the background once it is older than the cache's
+     * time to live.  There is no venue cache by default.
+     *
+     * @param venueCache disk cache for venue configuration, or null to always go to the server.
+     */
+    public synchronized void setVenueCache(PIVenueCache venueCache) {
+        mVenueCache = venueCache;
+    }
+
+    /**
+     * Sets the cache for floor maps.  By default floor maps are cached in memory, using up to an
+     * eighth of the heap, and on disk for a day.
+     *
+     * @param floorMapCache cache for floor maps.
+     */
+    public synchronized void setFloorMapCache(PIFloorMapCache floorMapCache) {
+        mFloorMapCache = floorMapCache;
+    }
+
+    /**
+     * Returns the cache used for conditional GETs of venue configuration.  Use its hit and miss
+     * counters to confirm that the cache is working.
+     *
+     * @return the adapter's response cache
+     */
+    public synchronized PIResponseCache getResponseCache() {
+        if (mResponseCache == null) {
+            mResponseCache = new PIResponseCache();
+        }
+        return mResponseCache;
+    }
+
     /**
      * Retrieves all the orgs of a tenant.  The tenant supplied in the PIAPIAdapter constructor.
      *
@@ -98,21 +351,7 @@ public class PIAPIAdapter implements Serializable {
         String orgs = String.format("%s/tenants/%s/orgs", mServerURL, mTenantCode);
         try {
             URL url = new URL(orgs);
-            GET(url, new PIAPICompletionHandler() {
-                @Override
-                public void onComplete(PIAPIResult result) {
-                    if (result.getResponseCode() == 200) {
-                        JSONObject orgObj = result.getResultAsJson();
-                        JSONArray orgsArray = (JSONArray)orgObj.get(JSON_ROWS);
-                        ArrayList<PIOrg> orgs = new ArrayList<PIOrg>();
-                        for (Object org : orgsArray) {
-                            orgs.add(new PIOrg((JSONObject) org));
-                        }
-                        result.setResult(orgs);
-                    }
-                    completionHandler.onComplete(result);
-                }
-            });
+            GET(url, ORGS_READER, completionHandler);
         } catch (MalformedURLException e) {
             e.printStackTrace();
         }
@@ -127,15 +366,7 @@ public class PIAPIAdapter implements Serializable {
         String org = String.format("%s/tenants/%s/orgs/%s", mServerURL, mTenantCode, mOrgCode);
         try {
             URL url = new URL(org);
-            GET(url, new PIAPICompletionHandler() {
-                @Override
-                public void onComplete(PIAPIResult result) {
-                    if (result.getResponseCode() == 200) {
-                        result.setResult(new PIOrg(result.getResultAsJson()));
-                    }
-                    completionHandler.onComplete(result);
-                }
-            });
+            VENUE_GET(url, ORG_READER, PIVenueCache.key(mTenantCode, mOrgCode, null, null, "org"), completionHandler);
         } catch (MalformedURLException e) {
             e.printStackTrace();
         }
@@ -149,21 +380,7 @@ public class PIAPIAdapter implements Serializable {
         String sites = String.format("%s/tenants/%s/orgs/%s/sites", mServerURL, mTenantCode, mOrgCode);
         try {
             URL url = new URL(sites);
-            GET(url, new PIAPICompletionHandler() {
-                @Override
-                public void onComplete(PIAPIResult result) {
-                    if (result.getResponseCode() == 200) {
-                        JSONObject siteObj = result.getResultAsJson();
-                        JSONArray sitesArray = (JSONArray)siteObj.get(JSON_ROWS);
-                        ArrayList<PISite> sites = new ArrayList<PISite>();
-                        for (Object site : sitesArray) {
-                            sites.add(new PISite((JSONObject) site));
-                        }
-                        result.setResult(sites);
-                    }
-                    completionHandler.onComplete(result);
-                }
-            });
+            VENUE_GET(url, SITES_READER, PIVenueCache.key(mTenantCode, mOrgCode, null, null, "sites"), completionHandler);
         } catch (MalformedURLException e) {
             e.printStackTrace();
         }
@@ -179,15 +396,7 @@ public class PIAPIAdapter implements Serializable {
         String site = String.format("%s/tenants/%s/orgs/%s/sites/%s", mServerURL, mTenantCode, mOrgCode, siteCode);
         try {
             URL url = new URL(site);
-            GET(url, new PIAPICompletionHandler() {
-                @Override
-                public void onComplete(PIAPIResult result) {
-                    if (result.getResponseCode() == 200) {
-                        result.setResult(new PISite(result.getResultAsJson()));
-                    }
-                    completionHandler.onComplete(result);
-                }
-            });
+            GET(url, SITE_READER, completionHandler);
         } catch (MalformedURLException e) {
             e.printStackTrace();
         }
@@ -203,21 +412,7 @@ public class PIAPIAdapter implements Serializable {
         String floors = String.format("%s/tenants/%s/orgs/%s/sites/%s/floors", mServerURL_v2, mTenantCode, mOrgCode, siteCode);
         try {
             URL url = new URL(floors);
-            GET(url, new PIAPICompletionHandler() {
-                @Override
-                public void onComplete(PIAPIResult result) {
-                    if (result.getResponseCode() == 200) {
-                        JSONObject floorObj = result.getResultAsJson();
-                        JSONArray floorsArray = (JSONArray)floorObj.get(JSON_FEATURES);
-                        ArrayList<PIFloor> floors = new ArrayList<PIFloor>();
-                        for (Object floor : floorsArray) {
-                            floors.add(new PIFloor((JSONObject) floor));
-                        }
-                        result.setResult(floors);
-                    }
-                    completionHandler.onComplete(result);
-                }
-            });
+            VENUE_GET(url, FLOORS_READER, PIVenueCache.key(mTenantCode, mOrgCode, siteCode, null, "floors"), completionHandler);
         } catch (MalformedURLException e) {
             e.printStackTrace();
         }
@@ -234,20 +429,25 @@ public class PIAPIAdapter implements Serializable {
         String floor = String.format("%s/tenants/%s/orgs/%s/sites/%s/floors/%s", mServerURL_v2, mTenantCode, mOrgCode, siteCode, floorCode);
         try {
             URL url = new URL(floor);
-            GET(url, new PIAPICompletionHandler() {
-                @Override
-                public void onComplete(PIAPIResult result) {
-                    if (result.getResponseCode() == 200) {
-                        result.setResult(new PIFloor(result.getResultAsJson()));
-                    }
-                    completionHandler.onComplete(result);
-                }
-            });
+            GET(url, FLOOR_READER, completionHandler);
         } catch (MalformedURLException e) {
             e.printStackTrace();
         }
     }
 
+    /**
+     * Retrieves a whole site: its floors, and the zones, beacons and sensors of every floor.  The
+     * floors are loaded in parallel, so the site takes about as long as its slowest request rather
+     * than the sum of them.  If any request fails, its result is returned instead.
+     *
+     * @param siteCode unique identifier for the site.
+     * @param completionHandler callback for APIs asynchronous calls. Result returns as {@link PIVenueSnapshot PIVenueSnapshot}.
+     */
+    public void prefetchSite(String siteCode, final PIAPICompletionHandler completionHandler) {
+        // one request per management thread, so a prefetch can't fill the lane's queue by itself
+        new PISitePrefetcher(this, siteCode, MANAGEMENT_POOL_SIZE, completionHandler).start();
+    }
+
     /**
      * Retrieves all devices of an organization.
      *
@@ -257,21 +457,7 @@ public class PIAPIAdapter implements Serializable {
         String devices = String.format("%s/tenants/%s/orgs/%s/devices", mServerURL, mTenantCode, mOrgCode);
         try {
             URL url = new URL(devices);
-            GET(url, new PIAPICompletionHandler() {
-                @Override
-                public void onComplete(PIAPIResult result) {
-                    if (result.getResponseCode() == 200) {
-                        JSONObject deviceObj = result.getResultAsJson();
-                        JSONArray devicesArray = (JSONArray)deviceObj.get(JSON_ROWS);
-                        ArrayList<PIDevice> devices = new ArrayList<PIDevice>();
-                        for (Object org : devicesArray) {
-                            devices.add(new PIDevice((JSONObject) org));
-                        }
-                        result.setResult(devices);
-                    }
-                    completionHandler.onComplete(result);
-                }
-            });
+            GET(url, DEVICES_READER, completionHandler);
         } catch (MalformedURLException e) {
             e.printStackTrace();
         }
@@ -287,15 +473,7 @@ public class PIAPIAdapter implements Serializable {
         String device = String.format("%s/tenants/%s/orgs/%s/devices/%s", mServerURL, mTenantCode, mOrgCode, deviceCode);
         try {
             URL url = new URL(device);
-            GET(url, new PIAPICompletionHandler() {
-                @Override
-                public void onComplete(PIAPIResult result) {
-                    if (result.getResponseCode() == 200) {
-                        result.setResult(new PIDevice(result.getResultAsJson()));
-                    }
-                    completionHandler.onComplete(result);
-                }
-            });
+            GET(url, DEVICE_READER, completionHandler);
         } catch (MalformedURLException e) {
             e.printStackTrace();
         }
@@ -311,14 +489,12 @@ public class PIAPIAdapter implements Serializable {
         String device = String.format("%s/tenants/%s/orgs/%s/devices?rawDescriptor=%s", mServerURL, mTenantCode, mOrgCode, deviceDescriptor);
         try {
             URL url = new URL(device);
-            GET(url, new PIAPICompletionHandler() {
+            GET(url, DEVICES_READER, new PIAPICompletionHandler() {
                 @Override
                 public void onComplete(PIAPIResult result) {
                     if (result.getResponseCode() == 200) {
-                        JSONArray matchingDevices = (JSONArray)result.getResultAsJson().get(JSON_ROWS);
-                        if (matchingDevices.size() > 0) {
-                            result.setResult(new PIDevice((JSONObject) matchingDevices.get(0)));
-                        }
+                        ArrayList<PIDevice> matchingDevices = (ArrayList<PIDevice>) result.getResult();
+                        result.setResult(matchingDevices.size() > 0 ? matchingDevices.get(0) : null);
                     }
                     completionHandler.onComplete(result);
                 }
@@ -339,21 +515,7 @@ public class PIAPIAdapter implements Serializable {
         String zones = String.format("%s/tenants/%s/orgs/%s/sites/%s/floors/%s/zones", mServerURL_v2, mTenantCode, mOrgCode, siteCode, floorCode);
         try {
             URL url = new URL(zones);
-            GET(url, new PIAPICompletionHandler() {
-                @Override
-                public void onComplete(PIAPIResult result) {
-                    if (result.getResponseCode() == 200) {
-                        JSONObject zoneObj = result.getResultAsJson();
-                        JSONArray zonesArray = (JSONArray)zoneObj.get(JSON_FEATURES);
-                        ArrayList<PIZone> zones = new ArrayList<PIZone>();
-                        for (Object zone : zonesArray) {
-                            zones.add(new PIZone((JSONObject) zone));
-                        }
-                        result.setResult(zones);
-                    }
-                    completionHandler.onComplete(result);
-                }
-            });
+            VENUE_GET(url, ZONES_READER, PIVenueCache.key(mTenantCode, mOrgCode, siteCode, floorCode, "zones"), completionHandler);
         } catch (MalformedURLException e) {
             e.printStackTrace();
         }
@@ -371,15 +533,7 @@ public class PIAPIAdapter implements Serializable {
         String zone = String.format("%s/tenants/%s/orgs/%s/sites/%s/floors/%s/zones/%s", mServerURL_v2, mTenantCode, mOrgCode, siteCode, floorCode, zoneCode);
         try {
             URL url = new URL(zone);
-            GET(url, new PIAPICompletionHandler() {
-                @Override
-                public void onComplete(PIAPIResult result) {
-                    if (result.getResponseCode() == 200) {
-                        result.setResult(new PIZone(result.getResultAsJson()));
-                    }
-                    completionHandler.onComplete(result);
-                }
-            });
+            GET(url, ZONE_READER, completionHandler);
         } catch (MalformedURLException e) {
             e.printStackTrace();
         }
@@ -396,21 +550,7 @@ public class PIAPIAdapter implements Serializable {
         String beacons = String.format("%s/tenants/%s/orgs/%s/sites/%s/floors/%s/beacons", mServerURL_v2, mTenantCode, mOrgCode, siteCode, floorCode);
         try {
             URL url = new URL(beacons);
-            GET(url, new PIAPICompletionHandler() {
-                @Override
-                public void onComplete(PIAPIResult result) {
-                    if (result.getResponseCode() == 200) {
-                        JSONObject beaconObj = result.getResultAsJson();
-                        JSONArray beaconsArray = (JSONArray)beaconObj.get(JSON_FEATURES);
-                        ArrayList<PIBeacon> beacons = new ArrayList<PIBeacon>();
-                        for (Object beacon : beaconsArray) {
-                            beacons.add(new PIBeacon((JSONObject) beacon));
-                        }
-                        result.setResult(beacons);
-                    }
-                    completionHandler.onComplete(result);
-                }
-            });
+            VENUE_GET(url, BEACONS_READER, PIVenueCache.key(mTenantCode, mOrgCode, siteCode, floorCode, "beacons"), completionHandler);
         } catch (MalformedURLException e) {
             e.printStackTrace();
         }
@@ -428,15 +568,7 @@ public class PIAPIAdapter implements Serializable {
         String beacon = String.format("%s/tenants/%s/orgs/%s/sites/%s/floors/%s/beacons/%s", mServerURL_v2, mTenantCode, mOrgCode, siteCode, floorCode, beaconCode);
         try {
             URL url = new URL(beacon);
-            GET(url, new PIAPICompletionHandler() {
-                @Override
-                public void onComplete(PIAPIResult result) {
-                    if (result.getResponseCode() == 200) {
-                        result.setResult(new PIBeacon(result.getResultAsJson()));
-                    }
-                    completionHandler.onComplete(result);
-                }
-            });
+            GET(url, BEACON_READER, completionHandler);
         } catch (MalformedURLException e) {
             e.printStackTrace();
         }
@@ -453,21 +585,7 @@ public class PIAPIAdapter implements Serializable {
         String sensors = String.format("%s/tenants/%s/orgs/%s/sites/%s/floors/%s/sensors", mServerURL_v2, mTenantCode, mOrgCode, siteCode, floorCode);
         try {
             URL url = new URL(sensors);
-            GET(url, new PIAPICompletionHandler() {
-                @Override
-                public void onComplete(PIAPIResult result) {
-                    if (result.getResponseCode() == 200) {
-                        JSONObject sensorObj = result.getResultAsJson();
-                        JSONArray sensorsArray = (JSONArray)sensorObj.get(JSON_FEATURES);
-                        ArrayList<PISensor> sensors = new ArrayList<PISensor>();
-                        for (Object sensor : sensorsArray) {
-                            sensors.add(new PISensor((JSONObject) sensor));
-                        }
-                        result.setResult(sensors);
-                    }
-                    completionHandler.onComplete(result);
-                }
-            });
+            VENUE_GET(url, SENSORS_READER, PIVenueCache.key(mTenantCode, mOrgCode, siteCode, floorCode, "sensors"), completionHandler);
         } catch (MalformedURLException e) {
             e.printStackTrace();
         }
@@ -485,15 +603,7 @@ public class PIAPIAdapter implements Serializable {
         String sensor = String.format("%s/tenants/%s/orgs/%s/sites/%s/floors/%s/sensors/%s", mServerURL_v2, mTenantCode, mOrgCode, siteCode, floorCode, sensorCode);
         try {
             URL url = new URL(sensor);
-            GET(url, new PIAPICompletionHandler() {
-                @Override
-                public void onComplete(PIAPIResult result) {
-                    if (result.getResponseCode() == 200) {
-                        result.setResult(new PISensor(result.getResultAsJson()));
-                    }
-                    completionHandler.onComplete(result);
-                }
-            });
+            GET(url, SENSOR_READER, completionHandler);
         } catch (MalformedURLException e) {
             e.printStackTrace();
         }
@@ -507,43 +617,153 @@ public class PIAPIAdapter implements Serializable {
      * @param completionHandler callback for APIs asynchronous calls. Result returns as {@link android.graphics.Bitmap Bitmap}.
      */
     public void getFloorMap(String siteCode, String floorCode, PIAPICompletionHandler completionHandler) {
+        getFloorMap(siteCode, floorCode, 0, 0, completionHandler);
+    }
+
+    /**
+     * Retrieves the map image of a floor, decoded to fit the requested size.  Returned as a Bitmap.
+     *
+     * The image is subsampled by a power of two so that it is no smaller than the requested size, the
+     * caller may still need to scale it.  Maps are cached in memory and on disk, see
+     * {@link #setFloorMapCache(PIFloorMapCache) setFloorMapCache}.  The returned Bitmap may be shared
+     * with other callers and the cache, don't recycle or modify it.
+     *
+     * The completion handler is called on the main thread after this method returns, also when the map
+     * is already in memory.
+     *
+     * @param siteCode unique identifier for the site.
+     * @param floorCode unique identifier for the floor.
+     * @param reqWidth width the map will be displayed at, 0 for full size.
+     * @param reqHeight height the map will be displayed at, 0 for full size.
+     * @param completionHandler callback for APIs asynchronous calls. Result returns as {@link android.graphics.Bitmap Bitmap}.
+     */
+    public void getFloorMap(String siteCode, String floorCode, final int reqWidth, final int reqHeight,
+                            final PIAPICompletionHandler completionHandler) {
         String map = String.format("%s/tenants/%s/orgs/%s/sites/%s/floors/%s/map", mServerURL, mTenantCode, mOrgCode, siteCode, floorCode);
+        final URL url;
         try {
-            URL url = new URL(map);
-            GET_IMAGE(url, completionHandler);
+            url = new URL(map);
         } catch (MalformedURLException e) {
             e.printStackTrace();
+            return;
+        }
+
+        final PIFloorMapCache floorMapCache = getFloorMapCache();
+        if (floorMapCache == null) {
+            GET_IMAGE(url, PIFloorMapCache.sampledReader(reqWidth, reqHeight), completionHandler);
+            return;
+        }
+
+        // memory, then disk, then the server
+        final String key = PIVenueCache.key(mTenantCode, mOrgCode, siteCode, floorCode, "map");
+        Bitmap bitmap = floorMapCache.getBitmap(key, reqWidth, reqHeight);
+        if (bitmap != null) {
+            deliver(completionHandler, new PIAPIResult(bitmap, HttpURLConnection.HTTP_OK));
+            return;
+        }
+        try {
+            new AsyncTask<Void, Void, Bitmap>(){
+                @Override
+                protected Bitmap doInBackground(Void... params) {
+                    return floorMapCache.loadBitmap(key, reqWidth, reqHeight);
+                }
+
+                @Override
+                protected void onPostExecute(Bitmap bitmap) {
+                    if (bitmap != null) {
+                        completionHandler.onComplete(new PIAPIResult(bitmap, HttpURLConnection.HTTP_OK));
+                    } else {
+                        GET_IMAGE(url, floorMapCache.writeThrough(key, reqWidth, reqHeight), completionHandler);
+                    }
+                }
+            }.executeOnExecutor(getManagementExecutor());
+        } catch (RejectedExecutionException e) {
+            rejected(url, e, completionHandler);
         }
     }
 
     /**
-     * Retrieves a list of proximity UUIDs from an organization.  Used for monitoring and ranging beacons in PIBeaconSensor.
+     * Retrieves the map image of a floor as a pyramid of tiles, for floor plans too large to be
+     * decoded as a single Bitmap.  Decoded tiles are kept in memory up to a sixteenth of the heap.
      *
-     * @param completionHandler callback for APIs asynchronous calls. Result returns as {@link ArrayList ArrayList}.
+     * @param siteCode unique identifier for the site.
+     * @param floorCode unique identifier for the floor.
+     * @param completionHandler callback for APIs asynchronous calls. Result returns as {@link PITiledFloorMap PITiledFloorMap}.
      */
-    public void getProximityUUIDs(final PIAPICompletionHandler completionHandler) {
-        String proximityUUIDs = String.format("%s/tenants/%s/orgs/%s/views/proximityUUID", mServerURL, mTenantCode, mOrgCode);
+    public void getTiledFloorMap(String siteCode, String floorCode, PIAPICompletionHandler completionHandler) {
+        int maxTileCacheSize = (int) Math.min(Runtime.getRuntime().maxMemory() / 16, Integer.MAX_VALUE);
+        getTiledFloorMap(siteCode, floorCode, maxTileCacheSize, completionHandler);
+    }
+
+    /**
+     * Retrieves the map image of a floor as a pyramid of tiles, for floor plans too large to be
+     * decoded as a single Bitmap.  The tiles are decoded from the copy of the map kept by the floor
+     * map cache, so this requires a Context or a {@link #setFloorMapCache(PIFloorMapCache) floor map cache}.
+     *
+     * @param siteCode unique identifier for the site.
+     * @param floorCode unique identifier for the floor.
+     * @param maxTileCacheSize maximum size in bytes of the decoded tiles kept in memory.
+     * @param completionHandler callback for APIs asynchronous calls. Result returns as {@link PITiledFloorMap PITiledFloorMap}.
+     */
+    public void getTiledFloorMap(String siteCode, String floorCode, final int maxTileCacheSize,
+                                 final PIAPICompletionHandler completionHandler) {
+        String map = String.format("%s/tenants/%s/orgs/%s/sites/%s/floors/%s/map", mServerURL, mTenantCode, mOrgCode, siteCode, floorCode);
+        final URL url;
         try {
-            URL url = new URL(proximityUUIDs);
-            GET(url, new PIAPICompletionHandler() {
+            url = new URL(map);
+        } catch (MalformedURLException e) {
+            e.printStackTrace();
+            return;
+        }
+
+        final PIFloorMapCache floorMapCache = getFloorMapCache();
+        if (floorMapCache == null) {
+            PIAPIResult result = new PIAPIResult();
+            result.setException(new IllegalStateException("Tiled floor maps need a floor map cache"));
+            completionHandler.onComplete(cannotReachServer(result));
+            return;
+        }
+
+        final String key = PIVenueCache.key(mTenantCode, mOrgCode, siteCode, floorCode, "map");
+        try {
+            new AsyncTask<Void, Void, PITiledFloorMap>(){
                 @Override
-                public void onComplete(PIAPIResult result) {
-                    if (result.getResponseCode() == 200) {
+                protected PITiledFloorMap doInBackground(Void... params) {
+                    File source = floorMapCache.getSourceFile(key);
+                    if (source != null) {
                         try {
-                            ArrayList<String> uuids = new ArrayList<String>();
-                            JSONArray uuidArray = JSONArray.parse(result.getResultAsString());
-                            for (Object uuid : uuidArray) {
-                                uuids.add((String) uuid);
-                            }
-                            result.setResult(uuids);
+                            return new PITiledFloorMap(source, maxTileCacheSize);
                         } catch (IOException e) {
-                            result.setException(e);
                             e.printStackTrace();
                         }
                     }
-                    completionHandler.onComplete(result);
+                    return null;
                 }
-            });
+
+                @Override
+                protected void onPostExecute(PITiledFloorMap tiledMap) {
+                    if (tiledMap != null) {
+                        completionHandler.onComplete(new PIAPIResult(tiledMap, HttpURLConnection.HTTP_OK));
+                    } else {
+                        GET_IMAGE(url, floorMapCache.tiledReader(key, maxTileCacheSize), completionHandler);
+                    }
+                }
+            }.executeOnExecutor(getManagementExecutor());
+        } catch (RejectedExecutionException e) {
+            rejected(url, e, completionHandler);
+        }
+    }
+
+    /**
+     * Retrieves a list of proximity UUIDs from an organization.  Used for monitoring and ranging beacons in PIBeaconSensor.
+     *
+     * @param completionHandler callback for APIs asynchronous calls. Result returns as {@link ArrayList ArrayList}.
+     */
+    public void getProximityUUIDs(final PIAPICompletionHandler completionHandler) {
+        String proximityUUIDs = String.format("%s/tenants/%s/orgs/%s/views/proximityUUID", mServerURL, mTenantCode, mOrgCode);
+        try {
+            URL url = new URL(proximityUUIDs);
+            VENUE_GET(url, PROXIMITY_UUIDS_READER, PIVenueCache.key(mTenantCode, mOrgCode, null, null, "proximityUUIDs"), completionHandler);
         } catch (MalformedURLException e) {
             e.printStackTrace();
         }
@@ -560,25 +780,20 @@ public class PIAPIAdapter implements Serializable {
         final String registerDevice = String.format("%s/tenants/%s/orgs/%s/devices", mServerURL, mTenantCode, mOrgCode);
         try {
             URL url = new URL(registerDevice);
-            POST(url, device.toJSON(), new PIAPICompletionHandler() {
+            POST(url, device.toJSON(), Lane.MANAGEMENT, new PIAPICompletionHandler() {
                 @Override
                 public void onComplete(PIAPIResult postResult) {
                     if (postResult.getResponseCode() == HttpURLConnection.HTTP_CONFLICT) {
                         // call GET
                         try {
                             final URL deviceLocation = new URL(postResult.getHeader().get("Location").get(0));
-                            GET(deviceLocation, new PIAPICompletionHandler() {
+                            GET_FOR_UPDATE(deviceLocation, new PIAPICompletionHandler() {
                                 @Override
                                 public void onComplete(PIAPIResult getResult) {
                                     if (getResult.getResponseCode() == HttpURLConnection.HTTP_OK) {
                                         // build f payload
-                                        JSONObject payload = null;
-                                        try {
-                                            payload = JSONObject.parse((String) getResult.getResult());
-                                            device.addToJson(payload);
-                                        } catch (IOException e) {
-                                            e.printStackTrace();
-                                        }
+                                        JSONObject payload = getResult.getResultAsJson();
+                                        device.addToJson(payload);
                                         // call PUT
                                         PUT(deviceLocation, payload, completionHandler);
 
@@ -610,7 +825,7 @@ public class PIAPIAdapter implements Serializable {
         String getDeviceObj = String.format("%s/tenants/%s/orgs/%s/devices?rawDescriptor=%s", mServerURL, mTenantCode, mOrgCode, device.getDescriptor());
         try {
             URL url = new URL(getDeviceObj);
-            GET(url, new PIAPICompletionHandler() {
+            GET_FOR_UPDATE(url, new PIAPICompletionHandler() {
                 @Override
                 public void onComplete(PIAPIResult getResult) {
                     if (getResult.getResponseCode() == HttpURLConnection.HTTP_OK) {
@@ -675,7 +890,7 @@ public class PIAPIAdapter implements Serializable {
         String bnm = String.format("%s/tenants/%s/orgs/%s", mConnectorURL, mTenantCode, mOrgCode);
         try {
             URL url = new URL(bnm);
-            POST(url, payload, completionHandler);
+            POST(url, payload, Lane.CONNECTOR, completionHandler);
         } catch (MalformedURLException e) {
             e.printStackTrace();
         }
@@ -689,320 +904,329 @@ public class PIAPIAdapter implements Serializable {
         return "Basic " + Base64.encodeToString(toEncode.getBytes(), 0, toEncode.length(), Base64.DEFAULT);
     }
 
-    private PIAPIResult cannotReachServer(PIAPIResult result) {
-        result.setResponseCode(0);
-        result.setResult("Cannot reach the server.");
-        return result;
+    private synchronized PITransport getTransport() {
+        if (mTransport == null) {
+            mTransport = new PIHttpTransport(CONNECTION_TIMEOUT_IN_MILLISECONDS, READ_TIMEOUT_IN_MILLISECONDS);
+        }
+        return mTransport;
     }
 
-    private void GET(URL url, PIAPICompletionHandler completionHandler) {
-        new AsyncTask<Object, Void, PIAPIResult>(){
-            private Exception exceptionToBeThrown;
-            private PIAPICompletionHandler completionHandler;
-            private URL url;
-            private int responseCode = 0;
-            private HttpURLConnection connection = null;
-            private PIAPIResult result = new PIAPIResult();
-            @Override
-            protected PIAPIResult doInBackground(Object... params) {
-                url = (URL) params[0];
-                completionHandler = (PIAPICompletionHandler) params[1];
-                // attempt GET from url
-                PILogger.d(TAG, "GET " + url.toString());
-                try {
-                    connection = (HttpURLConnection) url.openConnection();
-                    connection.setReadTimeout(READ_TIMEOUT_IN_MILLISECONDS);
-                    connection.setConnectTimeout(CONNECTION_TIMEOUT_IN_MILLISECONDS);
-                    connection.setRequestProperty("Accept", "application/json");
-                    connection.setRequestProperty("Authorization", mBasicAuth);
-                    connection.setRequestMethod("GET");
-                    connection.setDoInput(true);
-                    connection.connect();
-                    responseCode = connection.getResponseCode();
-                } catch (IOException e) {
-                    result.setException(e);
-                    e.printStackTrace();
-                }
+    private synchronized PIVenueCache getVenueCache() {
+        return mVenueCache;
+    }
 
-                // build result object
-                if (responseCode != 0) {
-                    StringBuilder sb = new StringBuilder();
-                    BufferedReader br;
-                    String line;
-                    try {
-                        if (isSuccessfulResponse(responseCode)) {
-                            br = new BufferedReader(new InputStreamReader(connection.getInputStream()));
-                        } else {
-                            br = new BufferedReader(new InputStreamReader(connection.getErrorStream()));
-                        }
-                        while ((line = br.readLine()) != null) {
-                            sb.append(line);
-                            sb.append("\n");
-                        }
-                        br.close();
-                    } catch (IOException e) {
-                        result.setException(e);
-                        e.printStackTrace();
-                    }
-                    result.setHeader(connection.getHeaderFields());
-                    result.setResult(sb.toString());
-                    result.setResponseCode(responseCode);
-
-                    PILogger.d(TAG, result.toString());
-                    return result;
-                } else {
-                    cannotReachServer(result);
-                }
-                PILogger.e(TAG, result.toString());
-                return result;
-            }
+    private synchronized PIFloorMapCache getFloorMapCache() {
+        // without a context there is nowhere to keep the maps on disk
+        if (mFloorMapCache == null && mContext != null) {
+            int maxMemorySize = (int) Math.min(Runtime.getRuntime().maxMemory() / 8, Integer.MAX_VALUE);
+            mFloorMapCache = new PIFloorMapCache(mContext, maxMemorySize, FLOOR_MAP_DISK_CACHE_SIZE, FLOOR_MAP_TIME_TO_LIVE);
+        }
+        return mFloorMapCache;
+    }
 
-            protected void onPostExecute(PIAPIResult result) {
-                completionHandler.onComplete(result);
-            }
+    private synchronized PIRequestCoalescer getCoalescer() {
+        if (mCoalescer == null) {
+            mCoalescer = new PIRequestCoalescer();
+        }
+        return mCoalescer;
+    }
 
-        }.execute(url, completionHandler);
+    private Executor getExecutor(Lane lane) {
+        return lane == Lane.CONNECTOR ? getConnectorExecutor() : getManagementExecutor();
     }
-    private void GET_IMAGE(URL url, PIAPICompletionHandler completionHandler) {
-        new AsyncTask<Object, Void, PIAPIResult>(){
-            Exception exceptionToBeThrown;
-            PIAPICompletionHandler completionHandler;
-            URL url;
-            int responseCode = 0;
-            HttpURLConnection connection = null;
-            private PIAPIResult result = new PIAPIResult();
 
-            @Override
-            protected PIAPIResult doInBackground(Object... params) {
-                url = (URL) params[0];
-                completionHandler = (PIAPICompletionHandler) params[1];
+    private synchronized PIRetryPolicy getRetryPolicy(Lane lane) {
+        if (lane == Lane.CONNECTOR) {
+            if (mConnectorRetryPolicy == null) {
+                mConnectorRetryPolicy = new PIRetryPolicy(CONNECTOR_MAX_ATTEMPTS, RETRY_BASE_DELAY_IN_MILLISECONDS, RETRY_MAX_DELAY_IN_MILLISECONDS);
+            }
+            return mConnectorRetryPolicy;
+        }
+        if (mManagementRetryPolicy == null) {
+            mManagementRetryPolicy = new PIRetryPolicy(MANAGEMENT_MAX_ATTEMPTS, RETRY_BASE_DELAY_IN_MILLISECONDS, RETRY_MAX_DELAY_IN_MILLISECONDS);
+        }
+        return mManagementRetryPolicy;
+    }
 
-                // attempt GET from url
-                PILogger.d(TAG, "GET " + url.toString());
-                try {
-                    connection = (HttpURLConnection) url.openConnection();
-                    connection.setReadTimeout(READ_TIMEOUT_IN_MILLISECONDS);
-                    connection.setConnectTimeout(CONNECTION_TIMEOUT_IN_MILLISECONDS);
-                    connection.setRequestProperty("Accept", "application/json");
-                    connection.setRequestProperty("Authorization", mBasicAuth);
-                    connection.setRequestMethod("GET");
-                    connection.setDoInput(true);
-                    connection.connect();
-                    responseCode = connection.getResponseCode();
-                } catch (IOException e) {
-                    result.setException(e);
-                    e.printStackTrace();
+    private PICircuitBreaker getCircuitBreaker(Lane lane) {
+        return lane == Lane.CONNECTOR ? getConnectorCircuitBreaker() : getManagementCircuitBreaker();
+    }
+
+    private synchronized ScheduledExecutorService getRetryScheduler() {
+        if (mRetryScheduler == null) {
+            ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    return new Thread(r, TAG + "-retry");
                 }
+            });
+            // only needed while retries are pending
+            scheduler.setKeepAliveTime(EXECUTOR_KEEP_ALIVE_IN_SECONDS, TimeUnit.SECONDS);
+            scheduler.allowCoreThreadTimeOut(true);
+            mRetryScheduler = scheduler;
+        }
+        return mRetryScheduler;
+    }
 
-                // if all goes well, return payload
-                if(responseCode == HttpURLConnection.HTTP_OK) {
-                    try {
-                        result.setHeader(connection.getHeaderFields());
-                        result.setResult(BitmapFactory.decodeStream(connection.getInputStream()));
-                        result.setResponseCode(responseCode);
+    private synchronized Handler getMainHandler() {
+        if (mMainHandler == null) {
+            mMainHandler = new Handler(Looper.getMainLooper());
+        }
+        return mMainHandler;
+    }
 
-                        PILogger.d(TAG, result.toString());
-                        return result;
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-                } else if (responseCode != 0) {
-                    try {
-                        StringBuilder sb = new StringBuilder();
-                        try {
-                            BufferedReader br = new BufferedReader(new InputStreamReader(connection.getErrorStream()));
-                            String line;
-                            while ((line = br.readLine()) != null) {
-                                sb.append(line);
-                                sb.append("\n");
+    private synchronized Executor getManagementExecutor() {
+        if (mManagementExecutor == null) {
+            mManagementExecutor = newBoundedExecutor("management", MANAGEMENT_POOL_SIZE);
+        }
+        return mManagementExecutor;
+    }
+
+    private synchronized Executor getConnectorExecutor() {
+        if (mConnectorExecutor == null) {
+            mConnectorExecutor = newBoundedExecutor("connector", CONNECTOR_POOL_SIZE);
+        }
+        return mConnectorExecutor;
+    }
+
+    private static Executor newBoundedExecutor(final String lane, int threads) {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads,
+                EXECUTOR_KEEP_ALIVE_IN_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(EXECUTOR_QUEUE_CAPACITY),
+                new ThreadFactory() {
+                    private final AtomicInteger mCount = new AtomicInteger(1);
+
+                    @Override
+                    public Thread newThread(final Runnable r) {
+                        return new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                                r.run();
                             }
-                            br.close();
-                        } catch (IOException e) {
-                            e.printStackTrace();
-                        }
-                        Exception exception = new Exception("Response code error: " + responseCode);
-                        result.setException(exception);
-                        result.setResult(sb.toString());
-                        result.setResponseCode(responseCode);
-                        throw exception;
-                    } catch (Exception e) {
-                        e.printStackTrace();
+                        }, TAG + "-" + lane + " #" + mCount.getAndIncrement());
                     }
-                } else {
-                    cannotReachServer(result);
-                }
+                });
+        // idle lanes shouldn't pin threads for the lifetime of the process
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
 
-                PILogger.d(TAG, result.toString());
-                return result;
+    // hands a retry back to its lane once the delay has passed
+    private void retryLater(final Runnable attempt, final Executor executor, long delay, final URL url,
+                            final PIAPICompletionHandler completionHandler) {
+        getRetryScheduler().schedule(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    executor.execute(attempt);
+                } catch (RejectedExecutionException e) {
+                    PILogger.e(TAG, "retry rejected, too many requests in flight: " + url.toString());
+                    PIAPIResult result = new PIAPIResult();
+                    result.setException(e);
+                    deliver(completionHandler, cannotReachServer(result));
+                }
             }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
 
-            protected void onPostExecute(PIAPIResult result) {
+    // completion handlers are called on the main thread
+    private void deliver(final PIAPICompletionHandler completionHandler, final PIAPIResult result) {
+        getMainHandler().post(new Runnable() {
+            @Override
+            public void run() {
                 completionHandler.onComplete(result);
             }
+        });
+    }
 
-        }.execute(url, completionHandler);
+    // a result with an exception is a failed request whatever its response code, so callers that
+    // check for a 200 never see a missing payload, and a transport that throws doesn't crash the app
+    private PIAPIResult executeSafely(String method, URL url, Map<String, String> headers, byte[] body, PITransport.ResponseReader reader) {
+        PIAPIResult result;
+        try {
+            result = getTransport().execute(method, url, headers, body, reader);
+        } catch (RuntimeException e) {
+            result = new PIAPIResult();
+            result.setException(e);
+        }
+        if (result.getException() != null) {
+            result.setResponseCode(0);
+            result.setResult(null);
+        }
+        return result;
     }
-    private void POST(URL url, JSONObject payload, PIAPICompletionHandler completionHandler) {
-        new AsyncTask<Object, Void, PIAPIResult>(){
-            private Exception exceptionToBeThrown;
-            private PIAPICompletionHandler completionHandler;
-            private URL url;
-            private JSONObject payload;
-            private int responseCode = 0;
-            private HttpURLConnection connection = null;
-            private PIAPIResult result = new PIAPIResult();
 
-            @Override
-            protected PIAPIResult doInBackground(Object... params) {
-                url = (URL) params[0];
-                payload = (JSONObject) params[1];
-                completionHandler = (PIAPICompletionHandler) params[2];
+    // the lane's queue is full, fail the request instead of blocking the caller
+    private void rejected(URL url, RejectedExecutionException e, PIAPICompletionHandler completionHandler) {
+        PILogger.e(TAG, "request rejected, too many requests in flight: " + url.toString());
+        PIAPIResult result = new PIAPIResult();
+        result.setException(e);
+        completionHandler.onComplete(cannotReachServer(result));
+    }
 
-                // attempt POST to url
-                PILogger.d(TAG, "POST " + url.toString());
-                try {
-                    connection = (HttpURLConnection) url.openConnection();
-                    connection.setReadTimeout(READ_TIMEOUT_IN_MILLISECONDS);
-                    connection.setConnectTimeout(CONNECTION_TIMEOUT_IN_MILLISECONDS);
-                    connection.setRequestProperty("Content-Type", "application/json");
-                    connection.setRequestProperty("Accept", "application/json");
-                    connection.setRequestProperty("Authorization", mBasicAuth);
-                    connection.setRequestMethod("POST");
-                    connection.setDoOutput(true);
-                    connection.connect();
-
-                    // send payload
-                    OutputStreamWriter out = new OutputStreamWriter(connection.getOutputStream());
-                    out.write(payload.toString());
-                    out.close();
-
-                    responseCode = connection.getResponseCode();
-                } catch (IOException e) {
-                    result.setException(e);
-                    e.printStackTrace();
+    private PIAPIResult cannotReachServer(PIAPIResult result) {
+        result.setResponseCode(0);
+        result.setResult("Cannot reach the server.");
+        return result;
+    }
+
+    private void GET(URL url, PITransport.ResponseReader reader, PIAPICompletionHandler completionHandler) {
+        request("GET", url, null, reader, null, true, Lane.MANAGEMENT, completionHandler);
+    }
+    // conditional GET, answered from the response cache on a 304
+    private void CACHED_GET(URL url, PITransport.ResponseReader reader, PIAPICompletionHandler completionHandler) {
+        request("GET", url, null, reader, getResponseCache(), true, Lane.MANAGEMENT, completionHandler);
+    }
+    // GET of a document the caller is about to modify and PUT back, never shared with other callers
+    private void GET_FOR_UPDATE(URL url, PIAPICompletionHandler completionHandler) {
+        request("GET", url, null, JSON_READER, null, false, Lane.MANAGEMENT, completionHandler);
+    }
+    // venue configuration, served from the venue cache first when there is one
+    private void VENUE_GET(final URL url, final PITransport.ResponseReader reader, final String key,
+                           final PIAPICompletionHandler completionHandler) {
+        final PIVenueCache venueCache = getVenueCache();
+        if (venueCache == null) {
+            CACHED_GET(url, reader, completionHandler);
+            return;
+        }
+        try {
+            new AsyncTask<Void, Void, PIAPIResult>(){
+                private boolean mStale;
+
+                @Override
+                protected PIAPIResult doInBackground(Void... params) {
+                    PIAPIResult cached = venueCache.read(key, reader);
+                    mStale = cached != null && venueCache.isStale(key);
+                    return cached;
                 }
 
-                // build result object
-                if (responseCode != 0) {
-                    StringBuilder sb = new StringBuilder();
-                    BufferedReader br;
-                    String line;
-                    try {
-                        if (isSuccessfulResponse(responseCode)) {
-                            br = new BufferedReader(new InputStreamReader(connection.getInputStream()));
-                        } else {
-                            br = new BufferedReader(new InputStreamReader(connection.getErrorStream()));
-                        }
-                        while ((line = br.readLine()) != null) {
-                            sb.append(line);
-                            sb.append("\n");
-                        }
-                        br.close();
-                    } catch (IOException e) {
-                        result.setException(e);
-                        e.printStackTrace();
+                @Override
+                protected void onPostExecute(PIAPIResult cached) {
+                    if (cached == null) {
+                        refreshVenue(url, reader, key, venueCache, completionHandler);
+                        return;
+                    }
+                    PILogger.d(TAG, "GET " + url.toString() + " served from venue cache");
+                    completionHandler.onComplete(cached);
+                    if (mStale) {
+                        // stale-while-revalidate, the caller already has an answer
+                        refreshVenue(url, reader, key, venueCache, new PIAPICompletionHandler() {
+                            @Override
+                            public void onComplete(PIAPIResult result) {
+                                if (result.getResponseCode() != HttpURLConnection.HTTP_OK) {
+                                    PILogger.e(TAG, "venue cache refresh failed: " + result.toString());
+                                }
+                            }
+                        });
                     }
-                    result.setHeader(connection.getHeaderFields());
-                    result.setResult(sb.toString());
-                    result.setResponseCode(responseCode);
-
-                    PILogger.d(TAG, result.toString());
-                    return result;
-                } else {
-                    cannotReachServer(result);
                 }
-
-                PILogger.e(TAG, result.toString());
-                return result;
-            }
-
-            protected void onPostExecute(PIAPIResult result) {
+            }.executeOnExecutor(getManagementExecutor());
+        } catch (RejectedExecutionException e) {
+            rejected(url, e, completionHandler);
+        }
+    }
+    // conditional GET with the validators in memory or on disk, a 304 is answered from either
+    private void refreshVenue(URL url, PITransport.ResponseReader reader, String key, PIVenueCache venueCache,
+                              PIAPICompletionHandler completionHandler) {
+        request("GET", url, null, venueCache.writeThrough(key, reader),
+                venueCache.conditional(key, getResponseCache(), reader), true, Lane.MANAGEMENT, completionHandler);
+    }
+    private void GET_IMAGE(URL url, PITransport.ResponseReader reader, final PIAPICompletionHandler completionHandler) {
+        request("GET", url, null, reader, null, false, Lane.MANAGEMENT, new PIAPICompletionHandler() {
+            @Override
+            public void onComplete(PIAPIResult result) {
+                if (result.getResponseCode() != HttpURLConnection.HTTP_OK && result.getResponseCode() != 0) {
+                    result.setException(new Exception("Response code error: " + result.getResponseCode()));
+                }
                 completionHandler.onComplete(result);
             }
-
-        }.execute(url, payload, completionHandler);
+        });
+    }
+    private void POST(URL url, JSONObject payload, Lane lane, PIAPICompletionHandler completionHandler) {
+        request("POST", url, payload, STRING_READER, null, false, lane, completionHandler);
     }
     private void PUT(URL url, JSONObject payload, PIAPICompletionHandler completionHandler) {
-        new AsyncTask<Object, Void, PIAPIResult>(){
-            private Exception exceptionToBeThrown;
-            private PIAPICompletionHandler completionHandler;
-            private URL url;
-            private JSONObject payload;
-            private int responseCode = 0;
-            private HttpURLConnection connection = null;
-            private PIAPIResult result = new PIAPIResult();
-
-            @Override
-            protected PIAPIResult doInBackground(Object... params) {
-                url = (URL) params[0];
-                payload = (JSONObject) params[1];
-                completionHandler = (PIAPICompletionHandler) params[2];
-
-                // attempt POST to url
-                PILogger.d(TAG, "PUT " + url.toString());
-                try {
-                    connection = (HttpURLConnection) url.openConnection();
-                    connection.setReadTimeout(READ_TIMEOUT_IN_MILLISECONDS);
-                    connection.setConnectTimeout(CONNECTION_TIMEOUT_IN_MILLISECONDS);
-                    connection.setRequestProperty("Content-Type", "application/json");
-                    connection.setRequestProperty("Accept", "application/json");
-                    connection.setRequestProperty("Authorization", mBasicAuth);
-                    connection.setRequestMethod("PUT");
-                    connection.setDoOutput(true);
-                    connection.connect();
-
-                    // send payload
-                    OutputStreamWriter out = new OutputStreamWriter(connection.getOutputStream());
-                    out.write(payload.toString());
-                    out.close();
-
-                    responseCode = connection.getResponseCode();
-                } catch (IOException e) {
-                    result.setException(e);
-                    e.printStackTrace();
+        request("PUT", url, payload, STRING_READER, null, false, Lane.MANAGEMENT, completionHandler);
+    }
+    private void request(final String method, final URL url, JSONObject payload, final PITransport.ResponseReader reader,
+                         final PIConditionalCache cache, boolean coalesce, Lane lane,
+                         PIAPICompletionHandler completionHandler) {
+        // identical requests already in flight are joined rather than sent again
+        if (coalesce) {
+            final String key = method + " " + url.toString();
+            final PIRequestCoalescer coalescer = getCoalescer();
+            if (!coalescer.join(key, completionHandler)) {
+                PILogger.d(TAG, "joined in-flight " + key);
+                return;
+            }
+            completionHandler = new PIAPICompletionHandler() {
+                @Override
+                public void onComplete(PIAPIResult result) {
+                    coalescer.complete(key, result);
                 }
+            };
+        }
+        final PIAPICompletionHandler requestHandler = completionHandler;
+
+        final Map<String, String> headers = new HashMap<String, String>();
+        headers.put("Accept", "application/json");
+        headers.put("Authorization", mBasicAuth);
+        byte[] body = null;
+        if (payload != null) {
+            headers.put("Content-Type", "application/json");
+            try {
+                body = payload.toString().getBytes("UTF-8");
+            } catch (UnsupportedEncodingException e) {
+                e.printStackTrace();
+            }
+        }
 
-                // build result object
-                if (responseCode != 0) {
-                    StringBuilder sb = new StringBuilder();
-                    BufferedReader br;
-                    String line;
-                    try {
-                        if (isSuccessfulResponse(responseCode)) {
-                            br = new BufferedReader(new InputStreamReader(connection.getInputStream()));
+        final byte[] requestBody = body;
+        final PIRetryPolicy retryPolicy = getRetryPolicy(lane);
+        final PICircuitBreaker circuitBreaker = getCircuitBreaker(lane);
+        final Executor executor = getExecutor(lane);
+        try {
+            // one attempt per run, a retry is scheduled rather than slept through so it doesn't hold a lane thread
+            executor.execute(new Runnable() {
+                private int mAttempt;
+
+                @Override
+                public void run() {
+                    PIAPIResult result;
+                    // fail fast while the server keeps failing
+                    if (!circuitBreaker.allowRequest(this)) {
+                        result = new PIAPIResult();
+                        result.setException(new IOException("Circuit breaker is open"));
+                    } else {
+                        PILogger.d(TAG, method + " " + url.toString());
+                        if (cache != null) {
+                            String key = url.toString();
+                            result = executeSafely(method, url, cache.addValidators(key, headers), requestBody, reader);
+                            cache.onResponse(key, result);
                         } else {
-                            br = new BufferedReader(new InputStreamReader(connection.getErrorStream()));
+                            result = executeSafely(method, url, headers, requestBody, reader);
                         }
-                        while ((line = br.readLine()) != null) {
-                            sb.append(line);
-                            sb.append("\n");
+                        circuitBreaker.onResult(this, result);
+
+                        long delay = retryPolicy.getRetryDelay(method, result, ++mAttempt);
+                        if (delay >= 0) {
+                            PILogger.d(TAG, "retrying " + method + " " + url.toString() + " in " + delay + "ms");
+                            retryLater(this, executor, delay, url, requestHandler);
+                            return;
                         }
-                        br.close();
-                    } catch (IOException e) {
-                        result.setException(e);
-                        e.printStackTrace();
                     }
-                    result.setHeader(connection.getHeaderFields());
-                    result.setResult(sb.toString());
-                    result.setResponseCode(responseCode);
-
-                    PILogger.d(TAG, result.toString());
-                    return result;
-                } else {
-                    cannotReachServer(result);
+                    if (result.getResponseCode() == 0) {
+                        cannotReachServer(result);
+                        PILogger.e(TAG, result.toString());
+                    } else {
+                        PILogger.d(TAG, result.toString());
+                    }
+                    deliver(requestHandler, result);
                 }
-
-                PILogger.e(TAG, result.toString());
-                return result;
-            }
-
-            protected void onPostExecute(PIAPIResult result) {
-                completionHandler.onComplete(result);
-            }
-
-        }.execute(url, payload, completionHandler);
-    }
-    private boolean isSuccessfulResponse (int responseCode) {
-        return responseCode >= HttpURLConnection.HTTP_OK && responseCode < HttpURLConnection.HTTP_BAD_REQUEST;
+            });
+        } catch (RejectedExecutionException e) {
+            rejected(url, e, requestHandler);
+        }
     }
 }
@@ -0,0 +1,66 @@
+/**
+ * Copyright (c) 2015 IBM Corporation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+package com.ibm.pisdk;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The adapters of the process, by handle.  PIBeaconSensorService looks its adapter up here, so the app
+ * and the service share one live instance, with its connection pool, caches and metrics, instead of the
+ * service working on a deserialized copy.
+ *
+ * PIBeaconSensor registers its adapter when it starts and unregisters it when it stops, so the registry
+ * only holds adapters that are in use.  Handles are unique to each adapter instance: a second adapter
+ * for the same organization never replaces the first.  After the OS restarts the service there is no
+ * adapter under its saved handle, so the service waits for the app to start the sensor again.
+ *
+ * @author Ciaran Hannigan (cehannig@us.ibm.com)
+ */
+public final class PIAPIAdapterRegistry {
+    private static final Map<String, PIAPIAdapter> sAdapters = new HashMap<String, PIAPIAdapter>();
+
+    private PIAPIAdapterRegistry() {
+    }
+
+    /**
+     * Registers an adapter, replacing any adapter registered under the same handle.
+     *
+     * @param adapter adapter to share
+     * @return the adapter's handle
+     */
+    public static synchronized String register(PIAPIAdapter adapter) {
+        String handle = adapter.getHandle();
+        sAdapters.put(handle, adapter);
+        return handle;
+    }
+
+    /**
+     * @param handle handle returned by {@link #register(PIAPIAdapter) register}
+     * @return the adapter, or null if none is registered under the handle
+     */
+    public static synchronized PIAPIAdapter get(String handle) {
+        return handle != null ? sAdapters.get(handle) : null;
+    }
+
+    /**
+     * @param handle handle of the adapter to stop sharing
+     */
+    public static synchronized void unregister(String handle) {
+        sAdapters.remove(handle);
+    }
+}
@@ -21,6 +21,7 @@ import com.ibm.json.java.JSONObject;
 
 import java.io.IOException;
 import java.io.Serializable;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 
@@ -62,6 +63,19 @@ public class PIAPIResult implements Serializable {
      */
     PIAPIResult(Object result, int responseCode){this.result = result; this.responseCode = responseCode;}
 
+    /**
+     * Copies the result, for handing the same response to several callers.  Lists are copied, the
+     * objects inside them are shared.
+     *
+     * @return a copy of this result
+     */
+    PIAPIResult copy() {
+        PIAPIResult copy = new PIAPIResult(result instanceof List ? new ArrayList<Object>((List<?>) result) : result, responseCode);
+        copy.header = header;
+        copy.exception = exception;
+        return copy;
+    }
+
     /**
      * Cast the return of this method with the expected {@link com.ibm.pisdk.doctypes doctype}.
      * If you are retrieving a list, it will be of type ArrayList of type doctype.
@@ -95,6 +109,10 @@ public class PIAPIResult implements Serializable {
      * @return the payload as a JSON Object
      */
     protected JSONObject getResultAsJson() {
+        // already decoded off the response stream
+        if (result instanceof JSONObject) {
+            return (JSONObject) result;
+        }
         try {
             return JSONObject.parse((String)result);
         } catch (IOException e) {
@@ -119,6 +137,24 @@ public class PIAPIResult implements Serializable {
         return header;
     }
 
+    /**
+     * Looks up a response header, ignoring the case of its name.
+     *
+     * @param name header name
+     * @return first value of the header, or null if the response doesn't have it
+     */
+    public String getHeaderField(String name) {
+        if (header == null) {
+            return null;
+        }
+        for (Map.Entry<String, List<String>> field : header.entrySet()) {
+            if (name.equalsIgnoreCase(field.getKey()) && field.getValue() != null && !field.getValue().isEmpty()) {
+                return field.getValue().get(0);
+            }
+        }
+        return null;
+    }
+
     /**
      *
      * @param header HTTP Header
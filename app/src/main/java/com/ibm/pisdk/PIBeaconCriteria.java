@@ -0,0 +1,120 @@
+/**
+ * Copyright (c) 2015 IBM Corporation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+package com.ibm.pisdk;
+
+import org.altbeacon.beacon.Beacon;
+import org.altbeacon.beacon.Identifier;
+import org.altbeacon.beacon.Region;
+
+/**
+ * Selects the beacons a listener is interested in.  Any attribute left unset matches every beacon, so
+ * a new PIBeaconCriteria matches everything.
+ *
+ * @author Ciaran Hannigan (cehannig@us.ibm.com)
+ */
+public class PIBeaconCriteria {
+    private String proximityUUID;
+    private int major = -1;
+    private int minor = -1;
+    private String proximity;
+
+    public PIBeaconCriteria() {
+    }
+
+    /**
+     * Copy constructor, listeners keep a copy of their criteria so later changes don't race with
+     * the thread matching beacons.
+     *
+     * @param other criteria to copy
+     */
+    PIBeaconCriteria(PIBeaconCriteria other) {
+        proximityUUID = other.proximityUUID;
+        major = other.major;
+        minor = other.minor;
+        proximity = other.proximity;
+    }
+
+    /**
+     *
+     * @param proximityUUID universally unique identifier for the beacon, or null for any
+     */
+    public void setProximityUUID(String proximityUUID) {
+        this.proximityUUID = proximityUUID;
+    }
+
+    /**
+     *
+     * @param major unique identifier within the proximity UUID space, or -1 for any
+     */
+    public void setMajor(int major) {
+        this.major = major;
+    }
+
+    /**
+     *
+     * @param minor unique identifier within the major space, or -1 for any
+     */
+    public void setMinor(int minor) {
+        this.minor = minor;
+    }
+
+    /**
+     *
+     * @param proximity range of a beacon (immediate, near, far), or null for any
+     */
+    public void setProximity(String proximity) {
+        this.proximity = proximity;
+    }
+
+    /**
+     * Proximity is judged from the beacon's own distance estimate.  Listeners of PIBeaconSensor are
+     * matched on the smoothed proximity instead, the one sent to the server.
+     *
+     * @param beacon AltBeacon beacon
+     * @return true if the beacon matches
+     */
+    public boolean matches(Beacon beacon) {
+        return matches(beacon, PIBeaconData.getProximityFromDistance(beacon.getDistance()));
+    }
+
+    /**
+     *
+     * @param beacon AltBeacon beacon
+     * @param beaconProximity proximity of the beacon (immediate, near, far, unknown)
+     * @return true if the beacon matches
+     */
+    boolean matches(Beacon beacon, String beaconProximity) {
+        return matches(beacon.getId1(), beacon.getId2(), beacon.getId3())
+                && (proximity == null || proximity.equals(beaconProximity));
+    }
+
+    /**
+     * Proximity does not apply to regions, a region matches if the identifiers it sets match.
+     *
+     * @param region AltBeacon region
+     * @return true if the region matches
+     */
+    public boolean matches(Region region) {
+        return matches(region.getId1(), region.getId2(), region.getId3());
+    }
+
+    private boolean matches(Identifier id1, Identifier id2, Identifier id3) {
+        return (proximityUUID == null || id1 == null || proximityUUID.equalsIgnoreCase(id1.toUuidString()))
+                && (major < 0 || id2 == null || major == id2.toInt())
+                && (minor < 0 || id3 == null || minor == id3.toInt());
+    }
+}
@@ -222,9 +222,20 @@ public class PIBeaconData {
      * @return string representing the range of a beacon (immediate, near, far)
      */
     private String getProximityFromBeacon(Beacon beacon) {
+        return getProximityFromDistance(beacon.getDistance());
+    }
+
+    /**
+     * Returns a string representation of a range.
+     *
+     * @param distance distance in meters, negative if unknown
+     * @return string representing the range (immediate, near, far, unknown)
+     */
+    static String getProximityFromDistance(double distance) {
         String proximity;
-        double distance = beacon.getDistance();
-        if (distance <= 0.5) {
+        if (distance < 0) {
+            proximity = "unknown";
+        } else if (distance <= 0.5) {
             proximity = "immediate";
         } else if (distance <= 10.0) {
             proximity = "near";
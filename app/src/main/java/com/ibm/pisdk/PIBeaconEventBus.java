@@ -0,0 +1,299 @@
+/**
+ * Copyright (c) 2015 IBM Corporation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+package com.ibm.pisdk;
+
+import org.altbeacon.beacon.Beacon;
+import org.altbeacon.beacon.Region;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class delivers beacon and region events from PIBeaconSensorService to the listeners registered
+ * through PIBeaconSensor.  The service and its listeners live in the same process, so events are handed
+ * over directly instead of being parceled into intents: each event is one read-only snapshot, shared by
+ * every snapshot listener and delivered on the executor the listener was registered with.  Listeners
+ * taking an ArrayList get their own copy of it, which they are free to modify.
+ *
+ * A listener can be registered with criteria and a minimum interval between deliveries.  Beacons are
+ * filtered and deliveries throttled here, before dispatch, so a listener only gets what it asked for.
+ * Listeners without criteria share the unfiltered snapshot.  A delivery due before the interval is up
+ * is held until it is, replaced by any newer one, so the listener always ends up with the latest
+ * beacons.  A listener with criteria gets one empty snapshot when its last matching beacon leaves range.
+ * Criteria are copied on registration.
+ *
+ * Every event is also emitted on a stream, for consumers that want to pull events with backpressure
+ * rather than have them pushed, see PIStream.
+ *
+ * @author Ciaran Hannigan (cehannig@us.ibm.com)
+ */
+class PIBeaconEventBus {
+    private static final String TAG = PIBeaconEventBus.class.getSimpleName();
+
+    private static final PIBeaconEventBus sInstance = new PIBeaconEventBus();
+
+    private final List<Registration<PIBeaconSensor.BeaconSnapshotListener>> mBeaconListeners =
+            new CopyOnWriteArrayList<Registration<PIBeaconSensor.BeaconSnapshotListener>>();
+    private final List<Registration<PIBeaconSensor.RegionEventListener>> mRegionListeners =
+            new CopyOnWriteArrayList<Registration<PIBeaconSensor.RegionEventListener>>();
+    private final PIStream.Source<PIBeaconSnapshot> mBeaconStream = new PIStream.Source<PIBeaconSnapshot>(PIStream.DEFAULT_BUFFER_SIZE);
+    private final PIStream.Source<PIRegionEvent> mRegionStream = new PIStream.Source<PIRegionEvent>(PIStream.DEFAULT_BUFFER_SIZE);
+
+    static PIBeaconEventBus getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * @param listener listener to register
+     * @param criteria beacons the listener is interested in, or null for all
+     * @param minInterval shortest time between deliveries in ms, 0 for every event
+     * @param executor executor the listener is called on
+     */
+    void register(final PIBeaconSensor.BeaconsInRangeListener listener, PIBeaconCriteria criteria, long minInterval, Executor executor) {
+        // the snapshot is shared, the listener gets a list of its own
+        PIBeaconSensor.BeaconSnapshotListener copying = new PIBeaconSensor.BeaconSnapshotListener() {
+            @Override
+            public void beaconsInRange(PIBeaconSnapshot snapshot) {
+                listener.beaconsInRange(new ArrayList<Beacon>(snapshot));
+            }
+        };
+        mBeaconListeners.add(new Registration<PIBeaconSensor.BeaconSnapshotListener>(listener, copying, copy(criteria), minInterval, executor));
+    }
+
+    /**
+     * @param listener listener to register
+     * @param criteria beacons the listener is interested in, or null for all
+     * @param minInterval shortest time between deliveries in ms, 0 for every event
+     * @param executor executor the listener is called on
+     */
+    void register(PIBeaconSensor.BeaconSnapshotListener listener, PIBeaconCriteria criteria, long minInterval, Executor executor) {
+        mBeaconListeners.add(new Registration<PIBeaconSensor.BeaconSnapshotListener>(listener, listener, copy(criteria), minInterval, executor));
+    }
+
+    /**
+     * Changes the shortest time between deliveries of a registered listener, keeping any pending one.
+     *
+     * @param listener listener registered with {@link #register(PIBeaconSensor.BeaconsInRangeListener, PIBeaconCriteria, long, Executor) register}
+     * @param minInterval shortest time between deliveries in ms, 0 for every event
+     */
+    void setMinInterval(PIBeaconSensor.BeaconsInRangeListener listener, long minInterval) {
+        for (Registration<PIBeaconSensor.BeaconSnapshotListener> registration : mBeaconListeners) {
+            if (registration.mKey == listener) {
+                synchronized (registration) {
+                    registration.mMinInterval = minInterval;
+                }
+            }
+        }
+    }
+
+    void unregister(PIBeaconSensor.BeaconsInRangeListener listener) {
+        remove(mBeaconListeners, listener);
+    }
+
+    void unregister(PIBeaconSensor.BeaconSnapshotListener listener) {
+        remove(mBeaconListeners, listener);
+    }
+
+    /**
+     * Region events are never throttled, an exit must not be lost.
+     *
+     * @param listener listener to register
+     * @param criteria regions the listener is interested in, or null for all
+     * @param executor executor the listener is called on
+     */
+    void register(PIBeaconSensor.RegionEventListener listener, PIBeaconCriteria criteria, Executor executor) {
+        mRegionListeners.add(new Registration<PIBeaconSensor.RegionEventListener>(listener, listener, copy(criteria), 0, executor));
+    }
+
+    void unregister(PIBeaconSensor.RegionEventListener listener) {
+        remove(mRegionListeners, listener);
+    }
+
+    PIStream.Publisher<PIBeaconSnapshot> getBeaconStream() {
+        return mBeaconStream;
+    }
+
+    PIStream.Publisher<PIRegionEvent> getRegionStream() {
+        return mRegionStream;
+    }
+
+    /**
+     * Ends both streams, the sensor has stopped.  Subscribers get what is still buffered, including a
+     * partly filled window, then onComplete.  Later subscribers start on a fresh stream.
+     */
+    void completeStreams() {
+        mBeaconStream.complete();
+        mRegionStream.complete();
+    }
+
+    /**
+     * Delivers the beacons in range to every beacon listener.
+     *
+     * @param beacons beacons ranged
+     * @param readings smoothed reading of each beacon, in the same order, criteria match on their proximity
+     * @param timestamp time the beacons were ranged in ms
+     */
+    void postBeaconsInRange(List<Beacon> beacons, List<PIBeaconData> readings, long timestamp) {
+        PIBeaconSnapshot all = null;
+        if (mBeaconStream.hasSubscribers()) {
+            all = new PIBeaconSnapshot(beacons, timestamp);
+            mBeaconStream.emit(all);
+        }
+        for (final Registration<PIBeaconSensor.BeaconSnapshotListener> registration : mBeaconListeners) {
+            final PIBeaconSnapshot snapshot;
+            if (registration.mCriteria == null) {
+                if (all == null) {
+                    all = new PIBeaconSnapshot(beacons, timestamp);
+                }
+                snapshot = all;
+            } else {
+                List<Beacon> matching = new ArrayList<Beacon>();
+                for (int i = 0; i < beacons.size(); i++) {
+                    if (registration.mCriteria.matches(beacons.get(i), readings.get(i).getProximity())) {
+                        matching.add(beacons.get(i));
+                    }
+                }
+                if (matching.isEmpty() && !registration.mMatched) {
+                    // the listener already knows none of its beacons are in range
+                    continue;
+                }
+                registration.mMatched = !matching.isEmpty();
+                snapshot = new PIBeaconSnapshot(matching, timestamp);
+            }
+            offer(registration, snapshot, timestamp);
+        }
+    }
+
+    // delivers now, or once the listener's interval is up if nothing newer comes first
+    private static void offer(final Registration<PIBeaconSensor.BeaconSnapshotListener> registration,
+                              PIBeaconSnapshot snapshot, long timestamp) {
+        synchronized (registration) {
+            final long due = registration.mLastDelivery + registration.mMinInterval;
+            if (timestamp >= due) {
+                registration.mPending = null;
+                registration.mLastDelivery = timestamp;
+                deliver(registration, snapshot);
+                return;
+            }
+            boolean scheduled = registration.mPending != null && registration.mPendingDue == due;
+            registration.mPending = snapshot;
+            registration.mPendingDue = due;
+            if (!scheduled) {
+                PIStream.getTimer().schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        flush(registration, due);
+                    }
+                }, due - timestamp, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    private static void flush(Registration<PIBeaconSensor.BeaconSnapshotListener> registration, long due) {
+        synchronized (registration) {
+            // delivered by a later event, rescheduled, or unregistered in the meantime
+            if (registration.mPending == null || registration.mPendingDue != due || registration.mRemoved) {
+                return;
+            }
+            PIBeaconSnapshot snapshot = registration.mPending;
+            registration.mPending = null;
+            registration.mLastDelivery = due;
+            deliver(registration, snapshot);
+        }
+    }
+
+    private static void deliver(final Registration<PIBeaconSensor.BeaconSnapshotListener> registration,
+                                final PIBeaconSnapshot snapshot) {
+        registration.mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                registration.mListener.beaconsInRange(snapshot);
+            }
+        });
+    }
+
+    /**
+     * Delivers a region event to every region listener.
+     *
+     * @param region region entered or exited
+     * @param entered true if the region was entered, false if it was exited
+     * @param timestamp time of the event in ms
+     */
+    void postRegionEvent(final Region region, final boolean entered, long timestamp) {
+        if (mRegionStream.hasSubscribers()) {
+            mRegionStream.emit(new PIRegionEvent(region, entered, timestamp));
+        }
+        for (final Registration<PIBeaconSensor.RegionEventListener> registration : mRegionListeners) {
+            if (registration.mCriteria != null && !registration.mCriteria.matches(region)) {
+                continue;
+            }
+            registration.mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (entered) {
+                        registration.mListener.didEnterRegion(region);
+                    } else {
+                        registration.mListener.didExitRegion(region);
+                    }
+                }
+            });
+        }
+    }
+
+    private static <T> void remove(List<Registration<T>> registrations, Object listener) {
+        for (Registration<T> registration : registrations) {
+            if (registration.mKey == listener) {
+                registrations.remove(registration);
+                synchronized (registration) {
+                    registration.mRemoved = true;
+                    registration.mPending = null;
+                }
+            }
+        }
+    }
+
+    private static PIBeaconCriteria copy(PIBeaconCriteria criteria) {
+        return criteria != null ? new PIBeaconCriteria(criteria) : null;
+    }
+
+    private static class Registration<T> {
+        // the listener as registered, mListener may wrap it
+        private final Object mKey;
+        private final T mListener;
+        private final PIBeaconCriteria mCriteria;
+        private final Executor mExecutor;
+        // only touched by the thread posting events
+        private boolean mMatched;
+        // guarded by this, the timer flushes pending deliveries
+        private long mMinInterval;
+        private long mLastDelivery = Long.MIN_VALUE / 2;
+        private PIBeaconSnapshot mPending;
+        private long mPendingDue;
+        private boolean mRemoved;
+
+        Registration(Object key, T listener, PIBeaconCriteria criteria, long minInterval, Executor executor) {
+            mKey = key;
+            mListener = listener;
+            mCriteria = criteria;
+            mMinInterval = minInterval;
+            mExecutor = executor;
+        }
+    }
+}
@@ -0,0 +1,143 @@
+/**
+ * Copyright (c) 2015 IBM Corporation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+package com.ibm.pisdk;
+
+import android.util.LongSparseArray;
+
+import org.altbeacon.beacon.Beacon;
+import org.altbeacon.beacon.distance.DistanceCalculator;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * This class smooths the RSSI of each beacon with a PIRssiFilter and estimates the beacon's distance
+ * from the smoothed signal, with the same calibrated model AltBeacon uses for the raw signal.  Filter state is kept per (uuid, major, minor), and dropped once a beacon
+ * has not been seen for a while so it starts fresh if it comes back.
+ *
+ * Used as a helper class in PIBeaconSensorService.
+ *
+ * @author Ciaran Hannigan (cehannig@us.ibm.com)
+ */
+class PIBeaconFilterStage {
+    private static final String TAG = PIBeaconFilterStage.class.getSimpleName();
+
+    // forget a beacon's history after it has been out of range this long
+    static final long STALE_AFTER_IN_MILLISECONDS = 30000;
+    // used until the app sets a filter
+    static final PIRssiFilter DEFAULT_FILTER = PIRssiFilter.kalman(0.5, 16);
+
+    private PIRssiFilter mFilter = DEFAULT_FILTER;
+
+    // keyed by uuid index, major and minor packed into a long, see key()
+    private final LongSparseArray<Entry> mEntries = new LongSparseArray<Entry>();
+    // the few proximity uuids of the org, indexed for the keys
+    private final List<String> mUuids = new ArrayList<String>();
+    private long mLastEviction;
+
+    /**
+     * Sets the filter, and forgets the history of all beacons.
+     *
+     * @param filter filter to copy for each beacon
+     */
+    synchronized void setFilter(PIRssiFilter filter) {
+        mFilter = filter;
+        mEntries.clear();
+    }
+
+    /**
+     * Filters the readings of a scan cycle.
+     *
+     * @param beacons beacons ranged in the cycle
+     * @param detectedTime time of the cycle in ms
+     * @return a reading per beacon, with the raw RSSI and the distance and proximity of the smoothed RSSI,
+     * or a distance of -1 and an unknown proximity if the distance can't be estimated
+     */
+    synchronized List<PIBeaconData> filter(Collection<Beacon> beacons, long detectedTime) {
+        evictStale(detectedTime);
+
+        List<PIBeaconData> readings = new ArrayList<PIBeaconData>(beacons.size());
+        for (Beacon beacon : beacons) {
+            long key = key(beacon);
+            Entry entry = mEntries.get(key);
+            if (entry == null) {
+                entry = new Entry(mFilter.newInstance());
+                mEntries.put(key, entry);
+            }
+            entry.mLastSeen = detectedTime;
+            double rssi = entry.mFilter.filter(beacon.getRssi());
+
+            PIBeaconData data = new PIBeaconData(beacon);
+            data.setDetectedTime(detectedTime);
+            // never fall back to the raw estimate, every reading of a payload comes from the same model
+            double distance = distance(beacon.getTxPower(), rssi);
+            data.setAccuracy(distance);
+            data.setProximity(PIBeaconData.getProximityFromDistance(distance));
+            readings.add(data);
+        }
+        return readings;
+    }
+
+    /**
+     * AltBeacon's distance model for this device, applied to a smoothed signal.
+     *
+     * @param txPower the beacon's calibrated signal strength at one meter
+     * @param rssi signal strength
+     * @return distance in meters, or -1 if the beacon has no calibration or AltBeacon has no model yet
+     */
+    static double distance(int txPower, double rssi) {
+        DistanceCalculator calculator = Beacon.getDistanceCalculator();
+        if (txPower == 0 || calculator == null) {
+            return -1;
+        }
+        return calculator.calculateDistance(txPower, rssi);
+    }
+
+    private void evictStale(long now) {
+        if (now - mLastEviction < STALE_AFTER_IN_MILLISECONDS) {
+            return;
+        }
+        mLastEviction = now;
+        for (int i = mEntries.size() - 1; i >= 0; i--) {
+            if (now - mEntries.valueAt(i).mLastSeen > STALE_AFTER_IN_MILLISECONDS) {
+                mEntries.removeAt(i);
+            }
+        }
+        PILogger.d(TAG, "tracking " + mEntries.size() + " beacons");
+    }
+
+    // major and minor are 16 bit, the uuid index takes the upper half
+    private long key(Beacon beacon) {
+        String uuid = beacon.getId1().toUuidString();
+        int uuidIndex = mUuids.indexOf(uuid);
+        if (uuidIndex < 0) {
+            uuidIndex = mUuids.size();
+            mUuids.add(uuid);
+        }
+        return ((long) uuidIndex << 32) | ((beacon.getId2().toInt() & 0xffffL) << 16) | (beacon.getId3().toInt() & 0xffffL);
+    }
+
+    private static class Entry {
+        private final PIRssiFilter mFilter;
+        private long mLastSeen;
+
+        Entry(PIRssiFilter filter) {
+            mFilter = filter;
+        }
+    }
+}
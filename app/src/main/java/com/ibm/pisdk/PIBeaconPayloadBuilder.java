@@ -0,0 +1,216 @@
+/**
+ * Copyright (c) 2015 IBM Corporation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+package com.ibm.pisdk;
+
+import com.ibm.json.java.JSONArray;
+import com.ibm.json.java.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This class folds the beacon readings of a window (one send interval) into a summary per beacon:
+ * the number of readings, min/max/mean RSSI and when it was first and last seen.  When the window is
+ * flushed, the beacons are selected by the payload mode: the K nearest, or every beacon at or above an
+ * RSSI floor, and at most a fixed number of them are sent in one message.
+ *
+ * Used as a helper class in PIBeaconSensorService.
+ *
+ * @author Ciaran Hannigan (cehannig@us.ibm.com)
+ */
+class PIBeaconPayloadBuilder {
+    static final int MODE_TOP_K = 0;
+    static final int MODE_RSSI_FLOOR = 1;
+
+    static final int DEFAULT_TOP_K = 1;
+    static final int DEFAULT_MAX_BEACONS = 20;
+
+    private static final Comparator<Summary> NEAREST_FIRST = new Comparator<Summary>() {
+        @Override
+        public int compare(Summary lhs, Summary rhs) {
+            return Double.compare(sortDistance(lhs), sortDistance(rhs));
+        }
+
+        // an unknown distance is -1, it goes after every known one
+        private double sortDistance(Summary summary) {
+            double distance = summary.mLatest.getAccuracy();
+            return distance < 0 ? Double.MAX_VALUE : distance;
+        }
+    };
+
+    private int mMode = MODE_TOP_K;
+    private int mTopK = DEFAULT_TOP_K;
+    private int mRssiFloor;
+    private int mMaxBeacons = DEFAULT_MAX_BEACONS;
+
+    // summary of each beacon seen in the current window
+    private final Map<String, Summary> mSummaries = new LinkedHashMap<String, Summary>();
+
+    /**
+     * Report the nearest beacons.
+     *
+     * @param k number of beacons to report
+     */
+    synchronized void setTopK(int k) {
+        mMode = MODE_TOP_K;
+        mTopK = k;
+    }
+
+    /**
+     * Report every beacon with a signal at least this strong.
+     *
+     * @param rssi weakest signal to report, in dBm
+     */
+    synchronized void setRssiFloor(int rssi) {
+        mMode = MODE_RSSI_FLOOR;
+        mRssiFloor = rssi;
+    }
+
+    /**
+     * @param maxBeacons most beacons to send in one message
+     */
+    synchronized void setMaxBeacons(int maxBeacons) {
+        mMaxBeacons = maxBeacons;
+    }
+
+    /**
+     * Folds the readings of a scan cycle into the current window.
+     *
+     * @param readings filtered readings of the cycle
+     */
+    synchronized void add(Collection<PIBeaconData> readings) {
+        for (PIBeaconData data : readings) {
+            String key = key(data);
+            Summary summary = mSummaries.get(key);
+            if (summary == null) {
+                mSummaries.put(key, new Summary(data));
+            } else {
+                summary.add(data);
+            }
+        }
+    }
+
+    /**
+     * @return true if nothing was seen in the current window
+     */
+    synchronized boolean isEmpty() {
+        return mSummaries.isEmpty();
+    }
+
+    /**
+     * @return latest reading of the nearest beacon in the current window, or null if it is empty
+     */
+    synchronized PIBeaconData nearest() {
+        Summary nearest = null;
+        for (Summary summary : mSummaries.values()) {
+            if (nearest == null || NEAREST_FIRST.compare(summary, nearest) < 0) {
+                nearest = summary;
+            }
+        }
+        return nearest != null ? nearest.mLatest : null;
+    }
+
+    /**
+     * Drops the current window without building a message, and starts a new one.
+     */
+    synchronized void clear() {
+        mSummaries.clear();
+    }
+
+    /**
+     * Builds the beacon notification message from the current window, and starts a new one.
+     *
+     * @param deviceId descriptor of this device
+     * @return the message, or null if no beacon qualifies
+     */
+    synchronized JSONObject build(String deviceId) {
+        List<Summary> summaries = new ArrayList<Summary>(mSummaries.values());
+        mSummaries.clear();
+        Collections.sort(summaries, NEAREST_FIRST);
+
+        JSONArray beaconArray = new JSONArray();
+        for (Summary summary : summaries) {
+            if (beaconArray.size() == mMaxBeacons || (mMode == MODE_TOP_K && beaconArray.size() == mTopK)) {
+                break;
+            }
+            if (mMode == MODE_RSSI_FLOOR && summary.meanRssi() < mRssiFloor) {
+                continue;
+            }
+            summary.mLatest.setDeviceDescriptor(deviceId);
+            beaconArray.add(summary.toJson());
+        }
+        if (beaconArray.isEmpty()) {
+            return null;
+        }
+
+        JSONObject payload = new JSONObject();
+        payload.put("bnm", beaconArray);
+        return payload;
+    }
+
+    private static String key(PIBeaconData data) {
+        return data.getProximityUUID() + ";" + data.getMajor() + ";" + data.getMinor();
+    }
+
+    // the readings of one beacon in a window; the latest reading is sent as the beacon's data
+    private static class Summary {
+        private PIBeaconData mLatest;
+        private int mCount;
+        private int mMinRssi;
+        private int mMaxRssi;
+        private long mRssiSum;
+        private final long mFirstSeen;
+
+        Summary(PIBeaconData data) {
+            mFirstSeen = data.getDetectedTime();
+            mMinRssi = data.getRssi();
+            mMaxRssi = data.getRssi();
+            add(data);
+        }
+
+        void add(PIBeaconData data) {
+            mLatest = data;
+            mCount++;
+            mMinRssi = Math.min(mMinRssi, data.getRssi());
+            mMaxRssi = Math.max(mMaxRssi, data.getRssi());
+            mRssiSum += data.getRssi();
+        }
+
+        double meanRssi() {
+            return (double) mRssiSum / mCount;
+        }
+
+        JSONObject toJson() {
+            JSONObject summary = new JSONObject();
+            summary.put("count", mCount);
+            summary.put("minRssi", mMinRssi);
+            summary.put("maxRssi", mMaxRssi);
+            summary.put("meanRssi", meanRssi());
+            summary.put("firstSeen", mFirstSeen);
+            summary.put("lastSeen", mLatest.getDetectedTime());
+
+            JSONObject beacon = mLatest.getBeaconAsJson();
+            beacon.put("summary", summary);
+            return beacon;
+        }
+    }
+}
@@ -0,0 +1,178 @@
+/**
+ * Copyright (c) 2015 IBM Corporation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+package com.ibm.pisdk;
+
+import android.os.Process;
+
+import org.altbeacon.beacon.Beacon;
+
+import java.util.Collection;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * This class runs the processing of ranging results on a dedicated thread, so the thread delivering
+ * them only has to enqueue them.  Hand-off is lock-free: producers never block, and the pipeline
+ * thread parks when there is nothing to do.
+ *
+ * Overflow policy: at most a fixed number of scan cycles are queued.  When a burst overflows the
+ * queue, the oldest cycle is dropped.  Each cycle holds every beacon in range at that time, so a
+ * newer cycle supersedes the dropped one, and only that cycle's readings are missing from the
+ * window statistics.  Other tasks, such as region events, are never dropped and are processed
+ * before the queued cycles.
+ *
+ * Used as a helper class in PIBeaconSensorService.
+ *
+ * @author Ciaran Hannigan (cehannig@us.ibm.com)
+ */
+class PIBeaconPipeline {
+    private static final String TAG = PIBeaconPipeline.class.getSimpleName();
+
+    static final int DEFAULT_CAPACITY = 8;
+
+    /**
+     * Processes a scan cycle on the pipeline thread.
+     */
+    interface CycleHandler {
+        void onCycle(Collection<Beacon> beacons, long detectedTime);
+    }
+
+    private final CycleHandler mCycleHandler;
+    private final int mCapacity;
+
+    private final Queue<Cycle> mCycles = new ConcurrentLinkedQueue<Cycle>();
+    private final AtomicInteger mQueued = new AtomicInteger();
+    private final Queue<Runnable> mTasks = new ConcurrentLinkedQueue<Runnable>();
+    private final AtomicInteger mDroppedCount = new AtomicInteger();
+
+    // the pipeline thread, it exits once this no longer points to it
+    private volatile Thread mThread;
+
+    PIBeaconPipeline(CycleHandler cycleHandler, int capacity) {
+        mCycleHandler = cycleHandler;
+        mCapacity = capacity;
+    }
+
+    synchronized void start() {
+        if (mThread != null) {
+            return;
+        }
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                loop();
+            }
+        }, TAG);
+        mThread.start();
+    }
+
+    /**
+     * Stops the pipeline thread, anything still queued is discarded.
+     */
+    synchronized void stop() {
+        if (mThread == null) {
+            return;
+        }
+        Thread thread = mThread;
+        mThread = null;
+        LockSupport.unpark(thread);
+    }
+
+    /**
+     * Queues a scan cycle, dropping the oldest one if the queue is full.
+     *
+     * @param beacons beacons ranged in the cycle
+     * @param detectedTime time of the cycle in ms
+     */
+    void offerCycle(Collection<Beacon> beacons, long detectedTime) {
+        mCycles.offer(new Cycle(beacons, detectedTime));
+        if (mQueued.incrementAndGet() > mCapacity && mCycles.poll() != null) {
+            mQueued.decrementAndGet();
+            PILogger.d(TAG, "pipeline is behind, dropped a scan cycle (" + mDroppedCount.incrementAndGet() + " so far)");
+        }
+        wakeUp();
+    }
+
+    /**
+     * Queues a task that must not be dropped.
+     *
+     * @param task task to run on the pipeline thread
+     */
+    void offerTask(Runnable task) {
+        mTasks.offer(task);
+        wakeUp();
+    }
+
+    /**
+     * @return number of scan cycles dropped because the queue was full
+     */
+    int getDroppedCount() {
+        return mDroppedCount.get();
+    }
+
+    private void wakeUp() {
+        Thread thread = mThread;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    private void loop() {
+        while (mThread == Thread.currentThread()) {
+            Runnable task = mTasks.poll();
+            if (task != null) {
+                run(task);
+                continue;
+            }
+            Cycle cycle = mCycles.poll();
+            if (cycle != null) {
+                mQueued.decrementAndGet();
+                run(cycle);
+                continue;
+            }
+            // an unpark between the polls and here makes park return immediately, nothing is missed
+            LockSupport.park(this);
+        }
+    }
+
+    // a failure processing one item shouldn't kill the pipeline
+    private void run(Runnable runnable) {
+        try {
+            runnable.run();
+        } catch (RuntimeException e) {
+            PILogger.e(TAG, "pipeline task failed: " + e.toString());
+        }
+    }
+
+    private class Cycle implements Runnable {
+        private final Collection<Beacon> mBeacons;
+        private final long mDetectedTime;
+
+        Cycle(Collection<Beacon> beacons, long detectedTime) {
+            mBeacons = beacons;
+            mDetectedTime = detectedTime;
+        }
+
+        @Override
+        public void run() {
+            mCycleHandler.onCycle(mBeacons, mDetectedTime);
+        }
+    }
+}
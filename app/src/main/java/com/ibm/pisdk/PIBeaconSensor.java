@@ -18,17 +18,20 @@ package com.ibm.pisdk;
 
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothManager;
-import android.content.BroadcastReceiver;
+import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
-import android.content.IntentFilter;
+import android.content.ServiceConnection;
 import android.content.pm.PackageManager;
-import android.support.v4.content.LocalBroadcastManager;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
 
 import org.altbeacon.beacon.Beacon;
 import org.altbeacon.beacon.Region;
 
 import java.util.ArrayList;
+import java.util.concurrent.Executor;
 
 /**
  * This class wraps the AltBeacon library's BeaconConsumer, and provides a simple interface to handle
@@ -39,28 +42,58 @@ import java.util.ArrayList;
 public class PIBeaconSensor {
     private final String TAG = PIBeaconSensor.class.getSimpleName();
 
-    protected static final String INTENT_PARAMETER_ADAPTER = "com.ibm.pisdk.adapter";
-    protected static final String INTENT_PARAMETER_COMMAND = "com.ibm.pisdk.command";
-    protected static final String INTENT_PARAMETER_DEVICE_ID = "com.ibm.pisdk.device_id";
-    protected static final String INTENT_PARAMETER_BEACON_LAYOUT = "com.ibm.pisdk.beacon_layout";
-    protected static final String INTENT_PARAMETER_SEND_INTERVAL = "com.ibm.pisdk.send_interval";
-    protected static final String INTENT_PARAMETER_BACKGROUND_SCAN_PERIOD = "com.ibm.pisdk.send_interval";
-    protected static final String INTENT_PARAMETER_BACKGROUND_BETWEEN_SCAN_PERIOD = "com.ibm.pisdk.send_interval";
-
+    /**
+     * @deprecated events are no longer broadcast, use {@link #setBeaconsInRangeListener(BeaconsInRangeListener) setBeaconsInRangeListener}
+     */
+    @Deprecated
     public static final String INTENT_RECEIVER_BEACON_COLLECTION = "intent_receiver_beacon_collection";
+    /**
+     * @deprecated events are no longer broadcast, use {@link #setRegionEventListener(RegionEventListener) setRegionEventListener}
+     */
+    @Deprecated
     public static final String INTENT_RECEIVER_REGION_ENTER = "intent_receiver_region_enter";
+    /**
+     * @deprecated events are no longer broadcast, use {@link #setRegionEventListener(RegionEventListener) setRegionEventListener}
+     */
+    @Deprecated
     public static final String INTENT_RECEIVER_REGION_EXIT = "intent_receiver_region_exit";
 
+    /**
+     * @deprecated events are no longer broadcast
+     */
+    @Deprecated
     public static final String INTENT_EXTRA_BEACONS_IN_RANGE = "com.ibm.pi.android.beacons_in_range";
+    /**
+     * @deprecated events are no longer broadcast
+     */
+    @Deprecated
     public static final String INTENT_EXTRA_ENTER_REGION = "com.ibm.pi.android.enter_region";
+    /**
+     * @deprecated events are no longer broadcast
+     */
+    @Deprecated
     public static final String INTENT_EXTRA_EXIT_REGION = "com.ibm.pi.android.exit_region";
 
+    // listeners registered without an executor are called on the main thread, as before
+    private static final Executor MAIN_THREAD_EXECUTOR = new Executor() {
+        private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+        @Override
+        public void execute(Runnable command) {
+            mHandler.post(command);
+        }
+    };
+
     private BluetoothAdapter mBluetoothAdapter;
     private final Context mContext;
     private final PIAPIAdapter mAdapter;
     private final String mDeviceId;
 
     private String mState;
+    // current settings, a copy is handed to the service whenever they change
+    private final PIBeaconSensorConfig mConfig = new PIBeaconSensorConfig();
+    // null until bound, or after the service is killed
+    private PIBeaconSensorService mService;
     private static final String STARTED = "started";
     private static final String STOPPED = "stopped";
 
@@ -69,17 +102,105 @@ public class PIBeaconSensor {
      */
     public interface BeaconsInRangeListener {
         /**
-         * Provides a collection of beacons within range
+         * Provides a collection of beacons within range.  Every listener gets its own copy.
          *
          * @param beacons collection of Class Beacon.
          */
         void beaconsInRange(ArrayList<Beacon> beacons);
     }
 
+    /**
+     * This interface provides a callback for beacons within range of the device, without copying them
+     * for every listener.
+     */
+    public interface BeaconSnapshotListener {
+        /**
+         * Provides the beacons within range.  The same snapshot is passed to every listener, so it is
+         * read-only.
+         *
+         * @param snapshot beacons in range
+         */
+        void beaconsInRange(PIBeaconSnapshot snapshot);
+    }
+
     private BeaconsInRangeListener mBeaconsInRangeListener;
 
+    /**
+     * Sets the listener for beacons in range, called on the main thread at most once per send interval.
+     *
+     * @param listener listener, or null to remove it
+     */
     public void setBeaconsInRangeListener(BeaconsInRangeListener listener) {
+        setBeaconsInRangeListener(listener, MAIN_THREAD_EXECUTOR);
+    }
+
+    /**
+     * Sets the listener for beacons in range, called at most once per send interval.
+     *
+     * @param listener listener, or null to remove it
+     * @param executor executor the listener is called on
+     */
+    public synchronized void setBeaconsInRangeListener(BeaconsInRangeListener listener, Executor executor) {
+        if (mBeaconsInRangeListener != null) {
+            PIBeaconEventBus.getInstance().unregister(mBeaconsInRangeListener);
+        }
         mBeaconsInRangeListener = listener;
+        if (listener != null) {
+            // the legacy listener is throttled to the send interval, as when it was called with every send
+            PIBeaconEventBus.getInstance().register(listener, null, mConfig.getSendInterval(), executor);
+        }
+    }
+
+    /**
+     * Adds a listener for beacons in range, alongside any others.  The listener is only given the
+     * beacons matching its criteria, and once with no beacons when the last of them leaves range.
+     * Filtering and throttling happen before the listener is called, so a listener only pays for the
+     * events it asked for.  A call that would come too soon is made at the end of the interval instead,
+     * with the latest beacons.
+     *
+     * @param listener listener to add
+     * @param criteria beacons the listener is interested in, or null for all; copied, later changes
+     *                 have no effect
+     * @param minInterval shortest time between calls in ms, 0 for every scan cycle
+     * @param executor executor the listener is called on
+     */
+    public void addBeaconsInRangeListener(BeaconsInRangeListener listener, PIBeaconCriteria criteria,
+                                          long minInterval, Executor executor) {
+        PIBeaconEventBus.getInstance().register(listener, criteria, minInterval, executor);
+    }
+
+    /**
+     * Removes a listener added with {@link #addBeaconsInRangeListener(BeaconsInRangeListener, PIBeaconCriteria, long, Executor) addBeaconsInRangeListener}.
+     *
+     * @param listener listener to remove
+     */
+    public void removeBeaconsInRangeListener(BeaconsInRangeListener listener) {
+        PIBeaconEventBus.getInstance().unregister(listener);
+    }
+
+    /**
+     * Adds a listener for beacons in range that shares one read-only snapshot with the other snapshot
+     * listeners, instead of getting a copy.  Filtering and throttling work as for
+     * {@link #addBeaconsInRangeListener(BeaconsInRangeListener, PIBeaconCriteria, long, Executor) addBeaconsInRangeListener}.
+     *
+     * @param listener listener to add
+     * @param criteria beacons the listener is interested in, or null for all; copied, later changes
+     *                 have no effect
+     * @param minInterval shortest time between calls in ms, 0 for every scan cycle
+     * @param executor executor the listener is called on
+     */
+    public void addBeaconSnapshotListener(BeaconSnapshotListener listener, PIBeaconCriteria criteria,
+                                          long minInterval, Executor executor) {
+        PIBeaconEventBus.getInstance().register(listener, criteria, minInterval, executor);
+    }
+
+    /**
+     * Removes a listener added with {@link #addBeaconSnapshotListener(BeaconSnapshotListener, PIBeaconCriteria, long, Executor) addBeaconSnapshotListener}.
+     *
+     * @param listener listener to remove
+     */
+    public void removeBeaconSnapshotListener(BeaconSnapshotListener listener) {
+        PIBeaconEventBus.getInstance().unregister(listener);
     }
 
     /**
@@ -103,8 +224,74 @@ public class PIBeaconSensor {
 
     private RegionEventListener mRegionEventListener;
 
+    /**
+     * Sets the listener for region events, called on the main thread.
+     *
+     * @param listener listener, or null to remove it
+     */
     public void setRegionEventListener(RegionEventListener listener) {
+        setRegionEventListener(listener, MAIN_THREAD_EXECUTOR);
+    }
+
+    /**
+     * Sets the listener for region events.
+     *
+     * @param listener listener, or null to remove it
+     * @param executor executor the listener is called on
+     */
+    public synchronized void setRegionEventListener(RegionEventListener listener, Executor executor) {
+        if (mRegionEventListener != null) {
+            PIBeaconEventBus.getInstance().unregister(mRegionEventListener);
+        }
         mRegionEventListener = listener;
+        if (listener != null) {
+            PIBeaconEventBus.getInstance().register(listener, null, executor);
+        }
+    }
+
+    /**
+     * Adds a listener for region events, alongside any others.  Region events are never throttled.
+     *
+     * @param listener listener to add
+     * @param criteria regions the listener is interested in, or null for all; copied, later changes
+     *                 have no effect
+     * @param executor executor the listener is called on
+     */
+    public void addRegionEventListener(RegionEventListener listener, PIBeaconCriteria criteria, Executor executor) {
+        PIBeaconEventBus.getInstance().register(listener, criteria, executor);
+    }
+
+    /**
+     * Removes a listener added with {@link #addRegionEventListener(RegionEventListener, PIBeaconCriteria, Executor) addRegionEventListener}.
+     *
+     * @param listener listener to remove
+     */
+    public void removeRegionEventListener(RegionEventListener listener) {
+        PIBeaconEventBus.getInstance().unregister(listener);
+    }
+
+    /**
+     * Returns the stream of beacons in range, one snapshot per scan cycle.  Nothing is delivered until
+     * requested, and at most 16 snapshots are held for a subscriber that falls behind, dropping the
+     * oldest.  Use {@link PIStream#conflate(PIStream.Publisher) PIStream.conflate} to only get the
+     * latest, or {@link PIStream#window(PIStream.Publisher, long) PIStream.window} to get them in groups.
+     * The stream completes when the sensor stops, subscribe again after restarting it.
+     *
+     * @return stream of beacon snapshots
+     */
+    public PIStream.Publisher<PIBeaconSnapshot> getBeaconStream() {
+        return PIBeaconEventBus.getInstance().getBeaconStream();
+    }
+
+    /**
+     * Returns the stream of region events.  Nothing is delivered until requested, and at most 16 events
+     * are held for a subscriber that falls behind, dropping the oldest.  The stream completes when the
+     * sensor stops.
+     *
+     * @return stream of region events
+     */
+    public PIStream.Publisher<PIRegionEvent> getRegionEventStream() {
+        return PIBeaconEventBus.getInstance().getRegionStream();
     }
 
     private static PIBeaconSensor sInstance;
@@ -159,42 +346,73 @@ public class PIBeaconSensor {
         } catch (Exception e){
             PILogger.e(TAG, "Failed to create PIBeaconSensorService: " + e.getMessage());
         }
+
+        mContext.bindService(new Intent(mContext, PIBeaconSensorService.class), mConnection, Context.BIND_AUTO_CREATE);
+    }
+
+    private final ServiceConnection mConnection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder binder) {
+            PIBeaconSensorService service = ((PIBeaconSensorService.LocalBinder) binder).getService();
+            boolean started;
+            synchronized (PIBeaconSensor.this) {
+                mService = service;
+                started = mState.equals(STARTED);
+                // catch the service up with what was set before it was bound
+                service.configure(new PIBeaconSensorConfig(mConfig));
+            }
+            if (started) {
+                service.startScanning(mAdapter.getHandle(), mDeviceId);
+            }
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            synchronized (PIBeaconSensor.this) {
+                mService = null;
+            }
+        }
+    };
+
+    // hands the service a copy of the settings, or leaves them for when it is bound
+    // copies are handed over under the lock, so the service gets them in order
+    private synchronized void updateConfig() {
+        if (mService != null) {
+            mService.configure(new PIBeaconSensorConfig(mConfig));
+        }
     }
 
     /**
      * Start sensing for beacons.
      */
     public void start() {
-        mState = STARTED;
-
-        // Register to receive messages.
-        LocalBroadcastManager.getInstance(mContext).registerReceiver(mMessageReceiver,
-                new IntentFilter(INTENT_RECEIVER_BEACON_COLLECTION));
-        LocalBroadcastManager.getInstance(mContext).registerReceiver(mMessageReceiver,
-                new IntentFilter(INTENT_RECEIVER_REGION_ENTER));
-        LocalBroadcastManager.getInstance(mContext).registerReceiver(mMessageReceiver,
-                new IntentFilter(INTENT_RECEIVER_REGION_EXIT));
-
-        Intent intent = new Intent(mContext, PIBeaconSensorService.class);
-        intent.putExtra(INTENT_PARAMETER_ADAPTER, mAdapter);
-        intent.putExtra(INTENT_PARAMETER_DEVICE_ID, mDeviceId);
-        intent.putExtra(INTENT_PARAMETER_COMMAND, "START_SCANNING");
-        mContext.startService(intent);
+        PIBeaconSensorService service;
+        synchronized (this) {
+            mState = STARTED;
+            service = mService;
+            // shared with the service by handle until the sensor stops
+            PIAPIAdapterRegistry.register(mAdapter);
+        }
+        // keeps the service running while nothing is bound to it
+        mContext.startService(new Intent(mContext, PIBeaconSensorService.class));
+        if (service != null) {
+            service.startScanning(mAdapter.getHandle(), mDeviceId);
+        }
     }
 
     /**
      * Stop sensing for beacons.
      */
     public void stop() {
-        mState = STOPPED;
-
-        // Unregister receiver.
-        LocalBroadcastManager.getInstance(mContext).unregisterReceiver(mMessageReceiver);
-
-        Intent intent = new Intent(mContext, PIBeaconSensorService.class);
-        intent.putExtra(INTENT_PARAMETER_ADAPTER, mAdapter);
-        intent.putExtra(INTENT_PARAMETER_COMMAND, "STOP_SCANNING");
-        mContext.startService(intent);
+        PIBeaconSensorService service;
+        synchronized (this) {
+            mState = STOPPED;
+            service = mService;
+            PIAPIAdapterRegistry.unregister(mAdapter.getHandle());
+        }
+        if (service != null) {
+            service.stopScanning();
+        }
     }
 
     /**
@@ -203,31 +421,121 @@ public class PIBeaconSensor {
      * @param sendInterval send interval in ms
      */
     public void setSendInterval(long sendInterval) {
-        Intent intent = new Intent(mContext, PIBeaconSensorService.class);
-        intent.putExtra(INTENT_PARAMETER_SEND_INTERVAL, sendInterval);
-        mContext.startService(intent);
+        synchronized (this) {
+            mConfig.setSendInterval(sendInterval);
+            if (mBeaconsInRangeListener != null) {
+                // the legacy listener follows the send interval
+                PIBeaconEventBus.getInstance().setMinInterval(mBeaconsInRangeListener, sendInterval);
+            }
+        }
+        updateConfig();
     }
 
     /**
-     * Sets the duration in milliseconds spent not scanning between each Bluetooth LE scan cycle when no ranging/monitoring clients are in the foreground.
+     * Sets the longest time between location reports while the device is stationary.  A report is sent
+     * at the end of a send interval only if the nearest beacon, its proximity or its distance changed;
+     * otherwise at most once per heartbeat interval.  The default is 60 seconds.
+     *
+     * @param heartbeatInterval heartbeat interval in ms
+     */
+    public void setHeartbeatInterval(long heartbeatInterval) {
+        synchronized (this) {
+            mConfig.setHeartbeatInterval(heartbeatInterval);
+        }
+        updateConfig();
+    }
+
+    /**
+     * Sets how far the distance to the nearest beacon must change before a new location report is
+     * sent.  The default is one meter.
+     *
+     * @param meters distance threshold in meters
+     */
+    public void setDistanceThreshold(double meters) {
+        synchronized (this) {
+            mConfig.setDistanceThreshold(meters);
+        }
+        updateConfig();
+    }
+
+    /**
+     * Sets the filter used to smooth each beacon's RSSI before its distance is estimated.  The
+     * distance and proximity reported for a beacon, and which beacons are nearest, are based on the
+     * smoothed signal.  By default a Kalman filter is used.
+     *
+     * @param filter RSSI filter, copied for every beacon
+     * @see com.ibm.pisdk.PIRssiFilter
+     */
+    public void setRssiFilter(PIRssiFilter filter) {
+        synchronized (this) {
+            mConfig.setRssiFilter(filter);
+        }
+        updateConfig();
+    }
+
+    /**
+     * Reports the nearest beacons to the beacon connector.  Readings from every scan cycle since the
+     * last report are taken into account, not just the latest one.  By default only the nearest beacon
+     * is reported.
+     *
+     * @param count number of beacons to report
+     */
+    public void setPayloadTopK(int count) {
+        synchronized (this) {
+            mConfig.setPayloadTopK(count);
+        }
+        updateConfig();
+    }
+
+    /**
+     * Reports every beacon seen since the last report with a signal at least as strong as rssiFloor,
+     * nearest first, instead of a fixed number of beacons.
+     *
+     * @param rssiFloor weakest signal to report, in dBm
+     */
+    public void setPayloadRssiFloor(int rssiFloor) {
+        synchronized (this) {
+            mConfig.setPayloadRssiFloor(rssiFloor);
+        }
+        updateConfig();
+    }
+
+    /**
+     * Sets the most beacons reported in one message, the default is 20.
+     *
+     * @param maxBeacons most beacons per message
+     */
+    public void setMaxPayloadSize(int maxBeacons) {
+        synchronized (this) {
+            mConfig.setMaxPayloadSize(maxBeacons);
+        }
+        updateConfig();
+    }
+
+    /**
+     * Sets the duration in milliseconds of each Bluetooth LE scan cycle to look for beacons when no ranging/monitoring clients are in the foreground.
      *
      * @param scanPeriod time in ms
      */
     public void setBackgroundScanPeriod(long scanPeriod) {
-        Intent intent = new Intent(mContext, PIBeaconSensorService.class);
-        intent.putExtra(INTENT_PARAMETER_BACKGROUND_SCAN_PERIOD, scanPeriod);
-        mContext.startService(intent);
+        synchronized (this) {
+            mConfig.setBackgroundScanPeriod(scanPeriod);
+        }
+        updateConfig();
     }
 
     /**
-     * Sets the duration in milliseconds of each Bluetooth LE scan cycle to look for beacons.
+     * Sets the duration in milliseconds spent not scanning between each Bluetooth LE scan cycle when no ranging/monitoring clients are in the foreground.
+     * This is where scanning starts from, the time between scans is shortened while the device moves
+     * and lengthened while it is stationary.
      *
      * @param betweenScanPeriod time in ms
      */
     public void setBackgroundBetweenScanPeriod(long betweenScanPeriod) {
-        Intent intent = new Intent(mContext, PIBeaconSensorService.class);
-        intent.putExtra(INTENT_PARAMETER_BACKGROUND_BETWEEN_SCAN_PERIOD, betweenScanPeriod);
-        mContext.startService(intent);
+        synchronized (this) {
+            mConfig.setBackgroundBetweenScanPeriod(betweenScanPeriod);
+        }
+        updateConfig();
     }
 
     /**
@@ -242,51 +550,16 @@ public class PIBeaconSensor {
      * @param beaconLayout the layout of the BLE advertisement
      */
     public void addBeaconLayout(String beaconLayout) {
-        if (mState.equals(STOPPED)) {
-            Intent intent = new Intent(mContext, PIBeaconSensorService.class);
-            intent.putExtra(INTENT_PARAMETER_BEACON_LAYOUT, beaconLayout);
-            mContext.startService(intent);
-        } else {
-            PILogger.e(TAG, "Cannot set beacon layout while service is running.");
+        synchronized (this) {
+            if (mState.equals(STARTED)) {
+                PILogger.e(TAG, "Cannot set beacon layout while service is running.");
+                return;
+            }
+            mConfig.addBeaconLayout(beaconLayout);
         }
+        updateConfig();
     }
 
-    // Local broadcast receiver to handle callback
-    private BroadcastReceiver mMessageReceiver = new BroadcastReceiver() {
-        @Override
-        public void onReceive(Context context, Intent intent) {
-                // beacons in range
-                if (INTENT_RECEIVER_BEACON_COLLECTION.equals(intent.getAction())) {
-                    if (mBeaconsInRangeListener != null) {
-                        PILogger.d(TAG, "received callback for beacons in range from sensor service.");
-                        // Get extra data included in the Intent
-                        ArrayList<Beacon> beacons = intent.getParcelableArrayListExtra(INTENT_EXTRA_BEACONS_IN_RANGE);
-                        mBeaconsInRangeListener.beaconsInRange(beacons);
-                    }
-                }
-                // region entered
-                else if (INTENT_RECEIVER_REGION_ENTER.equals(intent.getAction())) {
-                    PILogger.d(TAG, "received callback for region entered from sensor service.");
-                    if (mRegionEventListener != null) {
-                        Region enterRegion = (Region) intent.getExtras().get(INTENT_EXTRA_ENTER_REGION);
-                        mRegionEventListener.didEnterRegion(enterRegion);
-                    }
-                }
-                // region exited
-                else if (INTENT_RECEIVER_REGION_EXIT.equals(intent.getAction())) {
-                    PILogger.d(TAG, "received callback for region exited from sensor service.");
-                    if (mRegionEventListener != null) {
-                        Region exitRegion = (Region) intent.getExtras().get(INTENT_EXTRA_EXIT_REGION);
-                        mRegionEventListener.didExitRegion(exitRegion);
-                    }
-                }
-                // incorrect action received
-                else {
-                    PILogger.e(TAG, "incorrect action received, action received: " + intent.getAction());
-                }
-        }
-    };
-
     // confirm if the device supports BLE, if not it can't be used for detecting beacons
     private  boolean checkSupportBLE(){
         if (!mContext.getPackageManager().hasSystemFeature(PackageManager.FEATURE_BLUETOOTH_LE)) {
@@ -0,0 +1,155 @@
+/**
+ * Copyright (c) 2015 IBM Corporation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+package com.ibm.pisdk;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The settings of PIBeaconSensorService.  PIBeaconSensor keeps the current settings and hands the
+ * service a copy whenever one changes; the service applies a copy as a whole, so a scan cycle never
+ * sees some settings of an update and not others.
+ *
+ * Used as a helper class in PIBeaconSensor and PIBeaconSensorService.
+ *
+ * @author Ciaran Hannigan (cehannig@us.ibm.com)
+ */
+class PIBeaconSensorConfig {
+    static final long DEFAULT_SEND_INTERVAL = 5000; /* milliseconds */
+    static final long DEFAULT_BACKGROUND_SCAN_PERIOD = 1100; /* milliseconds */
+    static final long DEFAULT_BACKGROUND_BETWEEN_SCAN_PERIOD = 60000; /* milliseconds */
+
+    private long mSendInterval = DEFAULT_SEND_INTERVAL;
+    private long mHeartbeatInterval = PISendPolicy.DEFAULT_HEARTBEAT_INTERVAL;
+    private double mDistanceThreshold = PISendPolicy.DEFAULT_DISTANCE_THRESHOLD;
+    // null for the filter stage's default
+    private PIRssiFilter mRssiFilter;
+    private int mPayloadMode = PIBeaconPayloadBuilder.MODE_TOP_K;
+    private int mPayloadTopK = PIBeaconPayloadBuilder.DEFAULT_TOP_K;
+    private int mPayloadRssiFloor;
+    private int mMaxPayloadSize = PIBeaconPayloadBuilder.DEFAULT_MAX_BEACONS;
+    private long mBackgroundScanPeriod = DEFAULT_BACKGROUND_SCAN_PERIOD;
+    private long mBackgroundBetweenScanPeriod = DEFAULT_BACKGROUND_BETWEEN_SCAN_PERIOD;
+    private final List<String> mBeaconLayouts;
+
+    PIBeaconSensorConfig() {
+        mBeaconLayouts = new ArrayList<String>();
+    }
+
+    PIBeaconSensorConfig(PIBeaconSensorConfig config) {
+        mSendInterval = config.mSendInterval;
+        mHeartbeatInterval = config.mHeartbeatInterval;
+        mDistanceThreshold = config.mDistanceThreshold;
+        mRssiFilter = config.mRssiFilter;
+        mPayloadMode = config.mPayloadMode;
+        mPayloadTopK = config.mPayloadTopK;
+        mPayloadRssiFloor = config.mPayloadRssiFloor;
+        mMaxPayloadSize = config.mMaxPayloadSize;
+        mBackgroundScanPeriod = config.mBackgroundScanPeriod;
+        mBackgroundBetweenScanPeriod = config.mBackgroundBetweenScanPeriod;
+        mBeaconLayouts = new ArrayList<String>(config.mBeaconLayouts);
+    }
+
+    long getSendInterval() {
+        return mSendInterval;
+    }
+
+    void setSendInterval(long sendInterval) {
+        mSendInterval = sendInterval;
+    }
+
+    long getHeartbeatInterval() {
+        return mHeartbeatInterval;
+    }
+
+    void setHeartbeatInterval(long heartbeatInterval) {
+        mHeartbeatInterval = heartbeatInterval;
+    }
+
+    double getDistanceThreshold() {
+        return mDistanceThreshold;
+    }
+
+    void setDistanceThreshold(double distanceThreshold) {
+        mDistanceThreshold = distanceThreshold;
+    }
+
+    PIRssiFilter getRssiFilter() {
+        return mRssiFilter;
+    }
+
+    void setRssiFilter(PIRssiFilter rssiFilter) {
+        mRssiFilter = rssiFilter;
+    }
+
+    /**
+     * @return PIBeaconPayloadBuilder.MODE_TOP_K or MODE_RSSI_FLOOR
+     */
+    int getPayloadMode() {
+        return mPayloadMode;
+    }
+
+    int getPayloadTopK() {
+        return mPayloadTopK;
+    }
+
+    void setPayloadTopK(int topK) {
+        mPayloadMode = PIBeaconPayloadBuilder.MODE_TOP_K;
+        mPayloadTopK = topK;
+    }
+
+    int getPayloadRssiFloor() {
+        return mPayloadRssiFloor;
+    }
+
+    void setPayloadRssiFloor(int rssiFloor) {
+        mPayloadMode = PIBeaconPayloadBuilder.MODE_RSSI_FLOOR;
+        mPayloadRssiFloor = rssiFloor;
+    }
+
+    int getMaxPayloadSize() {
+        return mMaxPayloadSize;
+    }
+
+    void setMaxPayloadSize(int maxPayloadSize) {
+        mMaxPayloadSize = maxPayloadSize;
+    }
+
+    long getBackgroundScanPeriod() {
+        return mBackgroundScanPeriod;
+    }
+
+    void setBackgroundScanPeriod(long backgroundScanPeriod) {
+        mBackgroundScanPeriod = backgroundScanPeriod;
+    }
+
+    long getBackgroundBetweenScanPeriod() {
+        return mBackgroundBetweenScanPeriod;
+    }
+
+    void setBackgroundBetweenScanPeriod(long backgroundBetweenScanPeriod) {
+        mBackgroundBetweenScanPeriod = backgroundBetweenScanPeriod;
+    }
+
+    List<String> getBeaconLayouts() {
+        return mBeaconLayouts;
+    }
+
+    void addBeaconLayout(String beaconLayout) {
+        mBeaconLayouts.add(beaconLayout);
+    }
+}
@@ -17,13 +17,13 @@
 package com.ibm.pisdk;
 
 import android.app.Service;
-import android.content.Context;
 import android.content.Intent;
-import android.os.Bundle;
+import android.os.Binder;
+import android.os.Handler;
 import android.os.IBinder;
-import android.support.v4.content.LocalBroadcastManager;
+import android.os.Looper;
+import android.os.RemoteException;
 
-import com.ibm.json.java.JSONArray;
 import com.ibm.json.java.JSONObject;
 
 import org.altbeacon.beacon.Beacon;
@@ -38,126 +38,242 @@ import org.altbeacon.beacon.powersave.BackgroundPowerSaver;
 import java.net.HttpURLConnection;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
 
 public class PIBeaconSensorService extends Service implements BeaconConsumer {
     private static final String TAG = PIBeaconSensorService.class.getSimpleName();
 
-    private Context mContext;
     private BackgroundPowerSaver mBackgroundPowerSaver;
-    private PIAPIAdapter mPiApiAdapter;
+    // the adapter is shared with the app through PIAPIAdapterRegistry
+    private volatile String mAdapterHandle;
     private BeaconManager mBeaconManager;
     private RegionManager mRegionManager;
-    private String mDeviceId;
-
-    private volatile long mSendInterval = 5000l;
-    private volatile long mBackgroundScanPeriod = 1100l;
-    private volatile long mBackgroundBetweenScanPeriod = 60000l;
-    private long mLastSendTime = 0;
+    private PIRegionStore mRegionStore;
+    // region state saved by the previous service, applied the first time the beacon service connects
+    private Set<String> mSavedUuids;
+    private List<Region> mSavedBeaconRegions;
+    private volatile String mDeviceId;
+    private final PIBeaconFilterStage mFilterStage = new PIBeaconFilterStage();
+    private final PIBeaconPayloadBuilder mPayloadBuilder = new PIBeaconPayloadBuilder();
+    private final PISendPolicy mSendPolicy = new PISendPolicy();
+    // ranging results and region events are processed here, off the thread that delivers them
+    private PIBeaconPipeline mPipeline;
+    private Handler mMainHandler;
+    // adapts the time between background scans to motion and ranging results
+    private PIScanScheduler mScanScheduler;
+    private PIMotionDetector mMotionDetector;
+
+    private volatile long mSendInterval = PIBeaconSensorConfig.DEFAULT_SEND_INTERVAL;
+    // beacon layouts added to the beacon manager, guarded by this
+    private final Set<String> mBeaconLayouts = new HashSet<String>();
+    // only touched on the pipeline thread
+    private PIBeaconSensorConfig mConfig = new PIBeaconSensorConfig();
+    private long mWindowStartTime = 0;
     private long mCurrentTime = 0;
+    private long mCreateTime;
+    private long mAppliedBetweenScanPeriod = mConfig.getBackgroundBetweenScanPeriod();
+    private boolean mFirstBeaconRanged;
+
+    private final IBinder mBinder = new LocalBinder();
+
+    /**
+     * Gives PIBeaconSensor, in the same process, direct access to the service.
+     */
+    class LocalBinder extends Binder {
+        PIBeaconSensorService getService() {
+            return PIBeaconSensorService.this;
+        }
+    }
 
     @Override
     public IBinder onBind(Intent intent) {
-        return null;
+        return mBinder;
     }
 
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
-        String command;
-        Bundle extras = null;
-        if (intent != null) {
-            extras = intent.getExtras();
+        // restarted by the OS after being killed, nobody is bound to tell the service to scan
+        if (intent == null && mRegionStore.isScanning()) {
+            // the registry only lives in memory, so in the new process there is usually no adapter to
+            // refresh the UUIDs or send what is ranged; scanning would only drain the battery
+            if (PIAPIAdapterRegistry.get(mRegionStore.getAdapterHandle()) == null) {
+                PILogger.d(TAG, "Service restarted without an adapter, waiting for the app to start the sensor");
+                stopSelf(startId);
+                return START_NOT_STICKY;
+            }
+            PILogger.d(TAG, "Service restarted, resuming scanning for beacons");
+            mAdapterHandle = mRegionStore.getAdapterHandle();
+            mDeviceId = mRegionStore.getDeviceId();
+            mBeaconManager.bind(this);
         }
 
-        // lazily instantiate beacon manager
-        if (mBeaconManager == null) {
-            mBeaconManager = BeaconManager.getInstanceForApplication(this);
-
-            // set up for background ranging and monitoring
-            mBackgroundPowerSaver = new BackgroundPowerSaver(this.getApplicationContext());
-
-            // set some default values
-            mBeaconManager.setBackgroundScanPeriod(mBackgroundScanPeriod);
-            mBeaconManager.setBackgroundBetweenScanPeriod(mBackgroundBetweenScanPeriod);
-        }
-        // and region manager
-        if (mRegionManager == null) {
-            mRegionManager = new RegionManager(mBeaconManager);
-        }
+        return START_STICKY;
+    }
 
-        // check passed in intent for commands sent from Beacon Sensor wrapper class
-        if (extras != null) {
-            if (extras.get(PIBeaconSensor.INTENT_PARAMETER_ADAPTER) != null) {
-                mPiApiAdapter = (PIAPIAdapter) extras.get(PIBeaconSensor.INTENT_PARAMETER_ADAPTER);
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        mCreateTime = System.currentTimeMillis();
+        mMainHandler = new Handler(Looper.getMainLooper());
+
+        mBeaconManager = BeaconManager.getInstanceForApplication(this);
+        // set up for background ranging and monitoring
+        mBackgroundPowerSaver = new BackgroundPowerSaver(this.getApplicationContext());
+        // set some default values
+        mBeaconManager.setBackgroundScanPeriod(mConfig.getBackgroundScanPeriod());
+        mBeaconManager.setBackgroundBetweenScanPeriod(mConfig.getBackgroundBetweenScanPeriod());
+
+        mRegionManager = new RegionManager(mBeaconManager);
+        mRegionStore = new PIRegionStore(this);
+        mSavedUuids = mRegionStore.getUuids();
+        mSavedBeaconRegions = mRegionStore.getBeaconRegions();
+        PILogger.d(TAG, "loaded " + mSavedUuids.size() + " saved uuids and " + mSavedBeaconRegions.size() + " saved beacon regions");
+
+        mScanScheduler = new PIScanScheduler(mConfig.getBackgroundBetweenScanPeriod());
+        mMotionDetector = new PIMotionDetector(this, new PIMotionDetector.Listener() {
+            @Override
+            public void onMotion() {
+                final long now = System.currentTimeMillis();
+                mPipeline.offerTask(new Runnable() {
+                    @Override
+                    public void run() {
+                        mScanScheduler.onMotion(now);
+                        applyScanPeriod();
+                    }
+                });
             }
-            if (!extras.getString(PIBeaconSensor.INTENT_PARAMETER_DEVICE_ID, "").equals("")) {
-                mDeviceId = extras.getString(PIBeaconSensor.INTENT_PARAMETER_DEVICE_ID);
+        });
+        mPipeline = new PIBeaconPipeline(new PIBeaconPipeline.CycleHandler() {
+            @Override
+            public void onCycle(Collection<Beacon> beacons, long detectedTime) {
+                processBeacons(beacons, detectedTime);
             }
-            if (extras.getLong(PIBeaconSensor.INTENT_PARAMETER_SEND_INTERVAL, -1) > 0) {
-                mSendInterval = extras.getLong(PIBeaconSensor.INTENT_PARAMETER_SEND_INTERVAL);
-                PILogger.d(TAG, "updating send interval to: " + mSendInterval);
+        }, PIBeaconPipeline.DEFAULT_CAPACITY);
+        mPipeline.start();
+    }
+
+    /**
+     * Starts scanning for beacons.  Called on the main thread.
+     *
+     * @param adapterHandle handle of the adapter to send beacon notification messages with
+     * @param deviceId id of the device in the messages
+     */
+    void startScanning(String adapterHandle, String deviceId) {
+        PILogger.d(TAG, "Service has started scanning for beacons");
+        mAdapterHandle = adapterHandle;
+        mDeviceId = deviceId;
+        mRegionStore.setScanning(adapterHandle, deviceId);
+        mBeaconManager.bind(this);
+    }
+
+    /**
+     * Stops scanning for beacons.  Called on the main thread.
+     */
+    void stopScanning() {
+        PILogger.d(TAG, "Service has stopped scanning for beacons");
+        mRegionStore.setScanning(false);
+        mMotionDetector.stop();
+        mBeaconManager.unbind(this);
+        // on the pipeline thread, which does all the emitting, so completion never races an item
+        mPipeline.offerTask(new Runnable() {
+            @Override
+            public void run() {
+                PIBeaconEventBus.getInstance().completeStreams();
             }
-            if (!extras.getString(PIBeaconSensor.INTENT_PARAMETER_BEACON_LAYOUT, "").equals("")) {
-                String beaconLayout = intent.getStringExtra(PIBeaconSensor.INTENT_PARAMETER_BEACON_LAYOUT);
+        });
+    }
+
+    /**
+     * Applies new settings.  Beacon layouts are added right away, so they are in place before
+     * scanning starts; everything else is applied at once between two scan cycles.
+     *
+     * @param config the settings, not modified afterwards
+     */
+    synchronized void configure(final PIBeaconSensorConfig config) {
+        for (String beaconLayout : config.getBeaconLayouts()) {
+            if (mBeaconLayouts.add(beaconLayout)) {
                 PILogger.d(TAG, "adding new beacon layout: " + beaconLayout);
                 mBeaconManager.getBeaconParsers().add(new BeaconParser()
                         .setBeaconLayout(beaconLayout));
             }
-            if (extras.getLong(PIBeaconSensor.INTENT_PARAMETER_BACKGROUND_SCAN_PERIOD, -1) > 0) {
-                mBackgroundScanPeriod = extras.getLong(PIBeaconSensor.INTENT_PARAMETER_BACKGROUND_SCAN_PERIOD);
-                PILogger.d(TAG, "updating background scan period to: " + mBackgroundScanPeriod);
-                mBeaconManager.setBackgroundScanPeriod(mBackgroundScanPeriod);
-            }
-            if (extras.getLong(PIBeaconSensor.INTENT_PARAMETER_BACKGROUND_BETWEEN_SCAN_PERIOD, -1) > 0) {
-                mBackgroundBetweenScanPeriod = extras.getLong(PIBeaconSensor.INTENT_PARAMETER_BACKGROUND_BETWEEN_SCAN_PERIOD);
-                PILogger.d(TAG, "updating background between scan period to: " + mBackgroundBetweenScanPeriod);
-                mBeaconManager.setBackgroundBetweenScanPeriod(mBackgroundBetweenScanPeriod);
-            }
-            if (!extras.getString(PIBeaconSensor.INTENT_PARAMETER_COMMAND, "").equals("")) {
-                command = extras.getString(PIBeaconSensor.INTENT_PARAMETER_COMMAND);
-                if (command.equals("START_SCANNING")){
-                    PILogger.d(TAG, "Service has started scanning for beacons");
-                    mBeaconManager.bind(this);
-                } else if (command.equals("STOP_SCANNING")){
-                    PILogger.d(TAG, "Service has stopped scanning for beacons");
-                    mBeaconManager.unbind(this);
-                }
-            }
         }
-
-        return START_STICKY;
+        mPipeline.offerTask(new Runnable() {
+            @Override
+            public void run() {
+                applyConfig(config);
+            }
+        });
     }
 
-    @Override
-    public void onCreate() {
-        super.onCreate();
-        mContext = this;
+    // runs on the pipeline thread, only what changed is applied
+    private void applyConfig(PIBeaconSensorConfig config) {
+        PIBeaconSensorConfig previous = mConfig;
+        mConfig = config;
+        mSendInterval = config.getSendInterval();
+        mSendPolicy.setHeartbeatInterval(config.getHeartbeatInterval());
+        mSendPolicy.setDistanceThreshold(config.getDistanceThreshold());
+        if (config.getRssiFilter() != previous.getRssiFilter()) {
+            // resets every beacon's filter
+            mFilterStage.setFilter(config.getRssiFilter() != null ? config.getRssiFilter() : PIBeaconFilterStage.DEFAULT_FILTER);
+        }
+        if (config.getPayloadMode() == PIBeaconPayloadBuilder.MODE_RSSI_FLOOR) {
+            mPayloadBuilder.setRssiFloor(config.getPayloadRssiFloor());
+        } else {
+            mPayloadBuilder.setTopK(config.getPayloadTopK());
+        }
+        mPayloadBuilder.setMaxBeacons(config.getMaxPayloadSize());
+        if (config.getBackgroundScanPeriod() != previous.getBackgroundScanPeriod()) {
+            mBeaconManager.setBackgroundScanPeriod(config.getBackgroundScanPeriod());
+            // applyScanPeriod() only pushes the periods when the between scan period changes
+            mAppliedBetweenScanPeriod = -1;
+        }
+        if (config.getBackgroundBetweenScanPeriod() != previous.getBackgroundBetweenScanPeriod()) {
+            // the scheduler adapts from the new period
+            mScanScheduler.setBasePeriod(config.getBackgroundBetweenScanPeriod());
+        }
+        applyScanPeriod();
+        PILogger.d(TAG, "settings updated, send interval: " + mSendInterval
+                + ", background scan period: " + config.getBackgroundScanPeriod()
+                + ", background between scan period: " + config.getBackgroundBetweenScanPeriod());
     }
 
     @Override
     public void onBeaconServiceConnect() {
         mBeaconManager.setMonitorNotifier(new MonitorNotifier() {
             @Override
-            public void didEnterRegion(Region region) {
-                PILogger.d(TAG, "entered region: " + region);
-                mRegionManager.handleEnterRegion(region);
-
-                // send enter region event to listener callback
-                Intent intent = new Intent(PIBeaconSensor.INTENT_RECEIVER_REGION_ENTER);
-                intent.putExtra(PIBeaconSensor.INTENT_EXTRA_ENTER_REGION, region);
-
-                LocalBroadcastManager.getInstance(mContext).sendBroadcast(intent);
+            public void didEnterRegion(final Region region) {
+                mPipeline.offerTask(new Runnable() {
+                    @Override
+                    public void run() {
+                        PILogger.d(TAG, "entered region: " + region);
+                        mRegionManager.handleEnterRegion(region);
+                        mScanScheduler.onRegionEntered(System.currentTimeMillis());
+                        applyScanPeriod();
+
+                        // send enter region event to listener callback
+                        PIBeaconEventBus.getInstance().postRegionEvent(region, true, System.currentTimeMillis());
+                    }
+                });
             }
 
             @Override
-            public void didExitRegion(Region region) {
-                PILogger.d(TAG, "exited region: " + region);
-                mRegionManager.handleExitRegion(region);
-
-                // send exit region event to listener callback
-                Intent intent = new Intent(PIBeaconSensor.INTENT_RECEIVER_REGION_EXIT);
-                intent.putExtra(PIBeaconSensor.INTENT_EXTRA_EXIT_REGION, region);
-
-                LocalBroadcastManager.getInstance(mContext).sendBroadcast(intent);
+            public void didExitRegion(final Region region) {
+                mPipeline.offerTask(new Runnable() {
+                    @Override
+                    public void run() {
+                        PILogger.d(TAG, "exited region: " + region);
+                        mRegionManager.handleExitRegion(region);
+                        mScanScheduler.onRegionExited(System.currentTimeMillis());
+                        applyScanPeriod();
+
+                        // send exit region event to listener callback
+                        PIBeaconEventBus.getInstance().postRegionEvent(region, false, System.currentTimeMillis());
+                    }
+                });
             }
 
             @Override
@@ -169,31 +285,56 @@ public class PIBeaconSensorService extends Service implements BeaconConsumer {
         mBeaconManager.setRangeNotifier(new RangeNotifier() {
             @Override
             public void didRangeBeaconsInRegion(Collection<Beacon> beacons, Region region) {
-                if (beacons.size() > 0) {
-                    for (Beacon b : beacons) {
-                        mRegionManager.add(b);
-                    }
-                    mCurrentTime = System.currentTimeMillis();
-                    if (mCurrentTime - mLastSendTime > mSendInterval) {
-                        mLastSendTime = mCurrentTime;
-                        sendBeaconNotification(beacons);
-                    }
-                }
+                mPipeline.offerCycle(beacons, System.currentTimeMillis());
             }
         });
 
-        mPiApiAdapter.getProximityUUIDs(new PIAPICompletionHandler() {
+        mMotionDetector.start();
+
+        // a stop and start keeps the region manager, but the beacon service starts out knowing no regions
+        mPipeline.offerTask(new Runnable() {
+            @Override
+            public void run() {
+                mRegionManager.reconnect();
+            }
+        });
+
+        // start with the regions saved by the previous service, the server's list replaces them when it
+        // arrives; only once, after a stop and start the region manager already has newer regions
+        if (!mSavedUuids.isEmpty()) {
+            final Set<String> uuids = mSavedUuids;
+            final List<Region> beaconRegions = mSavedBeaconRegions;
+            mSavedUuids = Collections.emptySet();
+            mSavedBeaconRegions = Collections.emptyList();
+            mPipeline.offerTask(new Runnable() {
+                @Override
+                public void run() {
+                    if (mRegionManager.getUuids().isEmpty()) {
+                        mRegionManager.restore(uuids, beaconRegions);
+                    }
+                }
+            });
+        }
+
+        // the sensor stopped before the beacon service connected
+        PIAPIAdapter adapter = PIAPIAdapterRegistry.get(mAdapterHandle);
+        if (adapter == null) {
+            PILogger.e(TAG, "no adapter, scanning with the saved proximity UUIDs");
+            return;
+        }
+        adapter.getProximityUUIDs(new PIAPICompletionHandler() {
             @Override
             public void onComplete(PIAPIResult result) {
                 if (result.getResponseCode() == 200) {
-                    ArrayList<String> uuids = (ArrayList<String>) result.getResult();
+                    final ArrayList<String> uuids = (ArrayList<String>) result.getResult();
                     if (uuids.size() > 0) {
-                        for (Object uuid : uuids.toArray()) {
-                            // this is temporary
-                            // with only one uuid per org assumption in RegionManager
-                            // we will only range in the last uuid in the list
-                            mRegionManager.add((String) uuid);
-                        }
+                        mPipeline.offerTask(new Runnable() {
+                            @Override
+                            public void run() {
+                                mRegionManager.setUuids(uuids);
+                                saveRegionState();
+                            }
+                        });
                     } else {
                         PILogger.e(TAG, "Call to Management server returned an empty array of proximity UUIDs");
                     }
@@ -204,52 +345,118 @@ public class PIBeaconSensorService extends Service implements BeaconConsumer {
         });
     }
 
-    private void sendBeaconNotification(Collection<Beacon> beacons) {
-        PILogger.d(TAG, "sending beacon notification message");
-
-        JSONObject payload = buildBeaconPayload(beacons);
-        mPiApiAdapter.sendBeaconNotificationMessage(payload, new PIAPICompletionHandler() {
-            @Override
-            public void onComplete(PIAPIResult result) {
-                if (result.getResponseCode() >= HttpURLConnection.HTTP_BAD_REQUEST) {
-                    PILogger.e(TAG, result.toString());
-                }
+    // runs on the pipeline thread
+    private void processBeacons(Collection<Beacon> rangedBeacons, long detectedTime) {
+        // ranging is done for every uuid at once, keep the organization's beacons
+        List<Beacon> beacons = mRegionManager.filter(rangedBeacons);
+        mCurrentTime = detectedTime;
+        if (beacons.size() > 0) {
+            if (!mFirstBeaconRanged) {
+                mFirstBeaconRanged = true;
+                PILogger.d(TAG, "first beacon ranged " + (detectedTime - mCreateTime) + " ms after service creation");
             }
-        });
+            // every reading is smoothed, then goes into the current window's summaries
+            List<PIBeaconData> readings = mFilterStage.filter(beacons, mCurrentTime);
+            Iterator<PIBeaconData> reading = readings.iterator();
+            for (Beacon b : beacons) {
+                // region slots are scored on the smoothed distance
+                mRegionManager.add(b, reading.next().getAccuracy(), mCurrentTime);
+            }
+            mPayloadBuilder.add(readings);
 
-        // send beacons in range event to listener callback
-        Intent intent = new Intent(PIBeaconSensor.INTENT_RECEIVER_BEACON_COLLECTION);
-        intent.putParcelableArrayListExtra(PIBeaconSensor.INTENT_EXTRA_BEACONS_IN_RANGE, new ArrayList<Beacon>(beacons));
+            // send beacons in range event to listener callbacks, each throttled to its own rate
+            PIBeaconEventBus.getInstance().postBeaconsInRange(beacons, readings, mCurrentTime);
+        }
+        mScanScheduler.onCycle(beacons.size(), mCurrentTime);
+        applyScanPeriod();
+
+        // at most one message per window, flushed even if the beacons have since gone out of range
+        if (mCurrentTime - mWindowStartTime > mSendInterval) {
+            mWindowStartTime = mCurrentTime;
+            saveRegionState();
+            if (mPayloadBuilder.isEmpty()) {
+                mSendPolicy.onNothingInRange();
+            } else {
+                sendBeaconNotification();
+            }
+        }
+    }
 
-        LocalBroadcastManager.getInstance(this).sendBroadcast(intent);
+    // runs on the pipeline thread, only tells the scanner when the period changes
+    private void applyScanPeriod() {
+        long period = mScanScheduler.getBetweenScanPeriod();
+        if (period == mAppliedBetweenScanPeriod) {
+            return;
+        }
+        PILogger.d(TAG, "adapting background between scan period to: " + period);
+        mAppliedBetweenScanPeriod = period;
+        mBeaconManager.setBackgroundBetweenScanPeriod(period);
+        if (!mBeaconManager.isBound(this)) {
+            // picked up when scanning starts
+            return;
+        }
+        try {
+            mBeaconManager.updateScanPeriods();
+        } catch (RemoteException e) {
+            e.printStackTrace();
+        }
     }
 
-    private JSONObject buildBeaconPayload(Collection<Beacon> beacons) {
-        long detectedTime = System.currentTimeMillis();
-        JSONObject payload = new JSONObject();
-        JSONArray beaconArray = new JSONArray();
+    // runs on the pipeline thread
+    private void saveRegionState() {
+        if (mRegionManager.takeChanged()) {
+            mRegionStore.save(mRegionManager.getUuids(), mRegionManager.getBeaconRegionKeys());
+        }
+    }
 
-        // build payload with nearest beacon only
-        Beacon nearestBeacon = beacons.iterator().next();
-        for (Beacon b : beacons) {
-            if (b.getDistance() < nearestBeacon.getDistance()) {
-                nearestBeacon = b;
+    private void sendBeaconNotification() {
+        JSONObject payload = null;
+        PIBeaconData nearest = mPayloadBuilder.nearest();
+        if (mSendPolicy.shouldSend(nearest, mCurrentTime)) {
+            payload = mPayloadBuilder.build(mDeviceId);
+            if (payload != null) {
+                mSendPolicy.onSent(nearest, mCurrentTime);
+            } else {
+                // no beacon qualified, e.g. all below the RSSI floor, as far as the server knows nothing is in range
+                mSendPolicy.onNothingInRange();
             }
+        } else {
+            // stationary, nothing new to tell the server
+            mPayloadBuilder.clear();
+            PILogger.d(TAG, "beacon notification suppressed, " + mSendPolicy.getSuppressedCount()
+                    + " suppressed and " + mSendPolicy.getSentCount() + " sent so far");
+        }
+        if (payload != null) {
+            PILogger.d(TAG, "sending beacon notification message");
+            final JSONObject message = payload;
+            // the adapter's AsyncTasks are started from the main thread, the upload itself runs on the connector lane
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    PIAPIAdapter adapter = PIAPIAdapterRegistry.get(mAdapterHandle);
+                    if (adapter == null) {
+                        PILogger.e(TAG, "no adapter, beacon notification dropped");
+                        return;
+                    }
+                    adapter.sendBeaconNotificationMessage(message, new PIAPICompletionHandler() {
+                        @Override
+                        public void onComplete(PIAPIResult result) {
+                            if (result.getResponseCode() >= HttpURLConnection.HTTP_BAD_REQUEST) {
+                                PILogger.e(TAG, result.toString());
+                            }
+                        }
+                    });
+                }
+            });
         }
-
-        PIBeaconData data = new PIBeaconData(nearestBeacon);
-        data.setDetectedTime(detectedTime);
-        data.setDeviceDescriptor(mDeviceId);
-        beaconArray.add(data.getBeaconAsJson());
-
-        payload.put("bnm", beaconArray);
-
-        return payload;
     }
 
     @Override
     public void onDestroy() {
+        mMotionDetector.stop();
         mBeaconManager.unbind(this);
+        mPipeline.stop();
+        PIBeaconEventBus.getInstance().completeStreams();
         super.onDestroy();
     }
 }
@@ -0,0 +1,58 @@
+/**
+ * Copyright (c) 2015 IBM Corporation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+package com.ibm.pisdk;
+
+import org.altbeacon.beacon.Beacon;
+
+import java.util.AbstractList;
+import java.util.Collection;
+
+/**
+ * The beacons in range at one point in time.  A single snapshot is shared by every
+ * {@link PIBeaconSensor.BeaconSnapshotListener BeaconSnapshotListener} and stream subscriber, so it is
+ * a read-only list: every mutator, including those of its iterators and sub lists, throws
+ * UnsupportedOperationException.  Copy it to sort or edit it.
+ *
+ * @author Ciaran Hannigan (cehannig@us.ibm.com)
+ */
+public final class PIBeaconSnapshot extends AbstractList<Beacon> implements PIStream.Timestamped {
+    private final Beacon[] mBeacons;
+    private final long mTimestamp;
+
+    PIBeaconSnapshot(Collection<Beacon> beacons, long timestamp) {
+        mBeacons = beacons.toArray(new Beacon[beacons.size()]);
+        mTimestamp = timestamp;
+    }
+
+    /**
+     * @return time the beacons were ranged in ms
+     */
+    @Override
+    public long getTimestamp() {
+        return mTimestamp;
+    }
+
+    @Override
+    public Beacon get(int index) {
+        return mBeacons[index];
+    }
+
+    @Override
+    public int size() {
+        return mBeacons.length;
+    }
+}
@@ -0,0 +1,141 @@
+/**
+ * Copyright (c) 2015 IBM Corporation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+package com.ibm.pisdk;
+
+import java.net.HttpURLConnection;
+
+/**
+ * This class stops requests to a server that keeps failing.
+ *
+ * After a number of consecutive failures (connection errors, 429 or 5xx responses) the breaker opens
+ * and requests fail immediately without touching the network.  Once the open period has passed the
+ * breaker is half open: a single trial request is let through, and its outcome closes the breaker
+ * again or re-opens it for another period.  Requests that were already in flight when the breaker
+ * went half open don't count, only the trial decides.
+ *
+ * @author Ciaran Hannigan (cehannig@us.ibm.com)
+ */
+public class PICircuitBreaker {
+    private static final int HTTP_TOO_MANY_REQUESTS = 429;
+
+    /**
+     * State of the breaker.
+     */
+    public enum State {
+        /** requests go through */
+        CLOSED,
+        /** requests fail immediately */
+        OPEN,
+        /** one trial request is allowed through */
+        HALF_OPEN
+    }
+
+    private final int mFailureThreshold;
+    private final long mOpenDuration;
+
+    private State mState = State.CLOSED;
+    private int mConsecutiveFailures;
+    private long mOpenedAt;
+    // the request let through while half open, by identity
+    private Object mTrial;
+
+    /**
+     * Constructor
+     *
+     * @param failureThreshold consecutive failures that open the breaker
+     * @param openDuration time in ms the breaker stays open before letting a trial request through
+     */
+    public PICircuitBreaker(int failureThreshold, long openDuration) {
+        mFailureThreshold = failureThreshold;
+        mOpenDuration = openDuration;
+    }
+
+    /**
+     * @return current state of the breaker
+     */
+    public synchronized State getState() {
+        if (mState == State.OPEN && System.currentTimeMillis() - mOpenedAt >= mOpenDuration) {
+            mState = State.HALF_OPEN;
+        }
+        return mState;
+    }
+
+    /**
+     * Closes the breaker and forgets past failures.
+     */
+    public synchronized void reset() {
+        mState = State.CLOSED;
+        mConsecutiveFailures = 0;
+        mTrial = null;
+    }
+
+    /**
+     * @param request the request about to be sent, reported again to {@link #onResult(Object, PIAPIResult) onResult}
+     * @return true if a request may be sent now
+     */
+    synchronized boolean allowRequest(Object request) {
+        switch (getState()) {
+            case CLOSED:
+                return true;
+            case HALF_OPEN:
+                if (mTrial != null) {
+                    return false;
+                }
+                mTrial = request;
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Records the outcome of a request that was allowed through.
+     *
+     * @param request the request, as passed to {@link #allowRequest(Object) allowRequest}
+     * @param result result of the request
+     */
+    synchronized void onResult(Object request, PIAPIResult result) {
+        if (request == mTrial) {
+            mTrial = null;
+        } else if (getState() == State.HALF_OPEN) {
+            // started before the breaker opened, says nothing about the server now
+            return;
+        }
+        if (!isFailure(result)) {
+            mState = State.CLOSED;
+            mConsecutiveFailures = 0;
+            return;
+        }
+        mConsecutiveFailures++;
+        if (mState == State.HALF_OPEN || mConsecutiveFailures >= mFailureThreshold) {
+            if (mState != State.OPEN) {
+                PILogger.e("PICircuitBreaker", "opening after " + mConsecutiveFailures + " consecutive failures");
+            }
+            mState = State.OPEN;
+            mOpenedAt = System.currentTimeMillis();
+        }
+    }
+
+    // failures that say something about the health of the server, not about the request
+    private boolean isFailure(PIAPIResult result) {
+        int responseCode = result.getResponseCode();
+        return responseCode == 0
+                || result.getException() != null
+                || responseCode == HTTP_TOO_MANY_REQUESTS
+                || responseCode >= HttpURLConnection.HTTP_INTERNAL_ERROR;
+    }
+}
@@ -0,0 +1,47 @@
+/**
+ * Copyright (c) 2015 IBM Corporation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+package com.ibm.pisdk;
+
+import java.util.Map;
+
+/**
+ * This interface adds conditional GET support to a PIAPIAdapter request.  Both methods are called on
+ * the request's worker thread, so implementations may go to disk.
+ *
+ * Used as a helper class in PIAPIAdapter.
+ *
+ * @author Ciaran Hannigan (cehannig@us.ibm.com)
+ */
+interface PIConditionalCache {
+
+    /**
+     * Adds the validators of a cached response to the request headers.
+     *
+     * @param key request url
+     * @param headers request headers
+     * @return the headers with validators added, or the headers passed in if nothing is cached
+     */
+    Map<String, String> addValidators(String key, Map<String, String> headers);
+
+    /**
+     * Updates the cache from a response.  A 304 is rewritten into a 200 carrying the cached result.
+     *
+     * @param key request url
+     * @param result result of the request
+     */
+    void onResponse(String key, PIAPIResult result);
+}
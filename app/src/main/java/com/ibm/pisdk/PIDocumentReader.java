@@ -0,0 +1,193 @@
+/**
+ * Copyright (c) 2015 IBM Corporation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+package com.ibm.pisdk;
+
+import android.util.JsonReader;
+import android.util.JsonToken;
+
+import com.ibm.json.java.JSONArray;
+import com.ibm.json.java.JSONObject;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+
+/**
+ * This class decodes management server responses straight off the response stream.
+ *
+ * List responses are walked token by token; each element of the "rows" or "features" array is
+ * materialized on its own and handed to a factory that builds the {@link com.ibm.pisdk.doctypes doctype},
+ * so only one raw element is held in memory at a time regardless of the size of the response.
+ * Values are decoded the same way JSON4J does it (integers as Long, decimals as Double), so the
+ * doctype constructors see exactly what JSONObject.parse would have given them.
+ *
+ * Used as a helper class in PIAPIAdapter.
+ *
+ * @author Ciaran Hannigan (cehannig@us.ibm.com)
+ */
+final class PIDocumentReader {
+
+    /**
+     * Builds a doctype from its JSON document.
+     *
+     * @param <T> doctype
+     */
+    interface Factory<T> {
+        T create(JSONObject document);
+    }
+
+    private PIDocumentReader() {}
+
+    /**
+     * Reader for a response containing a list of documents.  The result is an ArrayList of doctype.
+     *
+     * @param arrayName name of the array holding the documents, "rows" or "features"
+     * @param factory builds each doctype
+     * @return response reader
+     */
+    static <T> PITransport.ResponseReader list(final String arrayName, final Factory<T> factory) {
+        return new PITransport.ResponseReader() {
+            @Override
+            public Object read(InputStream in) throws IOException {
+                ArrayList<T> documents = new ArrayList<T>();
+                JsonReader reader = newReader(in);
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    if (arrayName.equals(reader.nextName())) {
+                        reader.beginArray();
+                        while (reader.hasNext()) {
+                            documents.add(factory.create(readObject(reader)));
+                        }
+                        reader.endArray();
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+                return documents;
+            }
+        };
+    }
+
+    /**
+     * Reader for a response containing a single document.  The result is the doctype.
+     *
+     * @param factory builds the doctype
+     * @return response reader
+     */
+    static <T> PITransport.ResponseReader document(final Factory<T> factory) {
+        return new PITransport.ResponseReader() {
+            @Override
+            public Object read(InputStream in) throws IOException {
+                return factory.create(readObject(newReader(in)));
+            }
+        };
+    }
+
+    /**
+     * Reader for a response containing a JSON object.  The result is a JSONObject.
+     *
+     * @return response reader
+     */
+    static PITransport.ResponseReader json() {
+        return new PITransport.ResponseReader() {
+            @Override
+            public Object read(InputStream in) throws IOException {
+                return readObject(newReader(in));
+            }
+        };
+    }
+
+    /**
+     * Reader for a response containing an array of strings.  The result is an ArrayList of String.
+     *
+     * @return response reader
+     */
+    static PITransport.ResponseReader strings() {
+        return new PITransport.ResponseReader() {
+            @Override
+            public Object read(InputStream in) throws IOException {
+                ArrayList<String> strings = new ArrayList<String>();
+                JsonReader reader = newReader(in);
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    // fails on anything that isn't a string or a number
+                    strings.add(reader.nextString());
+                }
+                reader.endArray();
+                return strings;
+            }
+        };
+    }
+
+    // the transport owns the stream, so the JsonReader is never closed here
+    private static JsonReader newReader(InputStream in) throws IOException {
+        return new JsonReader(new InputStreamReader(in, "UTF-8"));
+    }
+
+    private static JSONObject readObject(JsonReader reader) throws IOException {
+        JSONObject object = new JSONObject();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            object.put(name, readValue(reader));
+        }
+        reader.endObject();
+        return object;
+    }
+
+    private static JSONArray readArray(JsonReader reader) throws IOException {
+        JSONArray array = new JSONArray();
+        reader.beginArray();
+        while (reader.hasNext()) {
+            array.add(readValue(reader));
+        }
+        reader.endArray();
+        return array;
+    }
+
+    private static Object readValue(JsonReader reader) throws IOException {
+        JsonToken token = reader.peek();
+        switch (token) {
+            case BEGIN_OBJECT:
+                return readObject(reader);
+            case BEGIN_ARRAY:
+                return readArray(reader);
+            case NUMBER:
+                return readNumber(reader.nextString());
+            case BOOLEAN:
+                return reader.nextBoolean();
+            case NULL:
+                reader.nextNull();
+                return null;
+            default:
+                return reader.nextString();
+        }
+    }
+
+    private static Number readNumber(String number) {
+        if (number.indexOf('.') < 0 && number.indexOf('e') < 0 && number.indexOf('E') < 0) {
+            try {
+                return Long.valueOf(number);
+            } catch (NumberFormatException e) {
+                // too big for a long, fall through
+            }
+        }
+        return Double.valueOf(number);
+    }
+}
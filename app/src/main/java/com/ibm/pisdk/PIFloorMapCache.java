@@ -0,0 +1,330 @@
+/**
+ * Copyright (c) 2015 IBM Corporation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+package com.ibm.pisdk;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.LruCache;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * This class caches floor maps in two levels: decoded Bitmaps in an in-memory LRU sized in bytes,
+ * and the raw image as downloaded from the server on disk.
+ *
+ * Bitmaps are decoded with a sample size when the caller asks for a target width and height, so a
+ * large floor plan shown in a small view never has to be decoded at full resolution.
+ *
+ * Callers asking for the same floor at the same size share one Bitmap, which stays in the memory
+ * cache.  Don't recycle or draw into it; copy it first if it needs to change.
+ *
+ * @author Ciaran Hannigan (cehannig@us.ibm.com)
+ */
+public class PIFloorMapCache {
+    private static final String TAG = PIFloorMapCache.class.getSimpleName();
+
+    private static final String CACHE_DIRECTORY = "pisdk-maps";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final int BUFFER_SIZE = 8192;
+
+    private final LruCache<String, Bitmap> mMemoryCache;
+    private final File mDirectory;
+    private final long mMaxDiskSize;
+    private final long mTimeToLive;
+
+    /**
+     * Constructor
+     *
+     * @param context Activity context
+     * @param maxMemorySize maximum size in bytes of the decoded Bitmaps kept in memory
+     * @param maxDiskSize maximum size in bytes of the raw images kept on disk
+     * @param timeToLive time in ms a map on disk is used before downloading it again
+     */
+    public PIFloorMapCache(Context context, int maxMemorySize, long maxDiskSize, long timeToLive) {
+        mMemoryCache = new LruCache<String, Bitmap>(maxMemorySize) {
+            @Override
+            protected int sizeOf(String key, Bitmap bitmap) {
+                return bitmap.getByteCount();
+            }
+        };
+        mDirectory = new File(context.getApplicationContext().getCacheDir(), CACHE_DIRECTORY);
+        mMaxDiskSize = maxDiskSize;
+        mTimeToLive = timeToLive;
+    }
+
+    /**
+     * Drops every map from memory and disk.
+     */
+    public synchronized void clear() {
+        mMemoryCache.evictAll();
+        File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * Evicts the decoded Bitmaps, e.g. from ComponentCallbacks2#onTrimMemory.  Maps stay on disk.
+     */
+    public void trimMemory() {
+        mMemoryCache.evictAll();
+    }
+
+    /**
+     * @param key floor key
+     * @param reqWidth requested width, 0 for full size
+     * @param reqHeight requested height, 0 for full size
+     * @return the decoded map from memory, or null
+     */
+    Bitmap getBitmap(String key, int reqWidth, int reqHeight) {
+        return mMemoryCache.get(memoryKey(key, reqWidth, reqHeight));
+    }
+
+    /**
+     * Decodes a map from disk and keeps it in memory.  Does disk I/O, call off the main thread.
+     *
+     * @param key floor key
+     * @param reqWidth requested width, 0 for full size
+     * @param reqHeight requested height, 0 for full size
+     * @return the decoded map, or null if there is no fresh copy on disk
+     */
+    Bitmap loadBitmap(String key, int reqWidth, int reqHeight) {
+        File file = getSourceFile(key);
+        if (file == null) {
+            return null;
+        }
+        Bitmap bitmap = decodeFile(file, reqWidth, reqHeight);
+        if (bitmap != null) {
+            mMemoryCache.put(memoryKey(key, reqWidth, reqHeight), bitmap);
+        }
+        return bitmap;
+    }
+
+    /**
+     * @param key floor key
+     * @return the raw image on disk, or null if there is no fresh copy
+     */
+    File getSourceFile(String key) {
+        File file = getFile(key);
+        if (!file.exists() || System.currentTimeMillis() - file.lastModified() > mTimeToLive) {
+            return null;
+        }
+        return file;
+    }
+
+    /**
+     * Reader that stores the raw image on disk, then decodes it at the requested size and keeps the
+     * Bitmap in memory.
+     *
+     * @param key floor key
+     * @param reqWidth requested width, 0 for full size
+     * @param reqHeight requested height, 0 for full size
+     * @return response reader
+     */
+    PITransport.ResponseReader writeThrough(final String key, final int reqWidth, final int reqHeight) {
+        return new PITransport.ResponseReader() {
+            @Override
+            public Object read(InputStream in) throws IOException {
+                if (!mDirectory.exists() && !mDirectory.mkdirs()) {
+                    return sampledReader(reqWidth, reqHeight).read(in);
+                }
+                File file = store(key, in);
+                Bitmap bitmap = decodeFile(file, reqWidth, reqHeight);
+                if (bitmap != null) {
+                    mMemoryCache.put(memoryKey(key, reqWidth, reqHeight), bitmap);
+                }
+                return bitmap;
+            }
+        };
+    }
+
+    /**
+     * Reader that stores the raw image on disk and opens it as a tiled map.
+     *
+     * @param key floor key
+     * @param maxTileCacheSize maximum size in bytes of the decoded tiles kept in memory
+     * @return response reader
+     */
+    PITransport.ResponseReader tiledReader(final String key, final int maxTileCacheSize) {
+        return new PITransport.ResponseReader() {
+            @Override
+            public Object read(InputStream in) throws IOException {
+                if (!mDirectory.exists() && !mDirectory.mkdirs()) {
+                    throw new IOException("no room to store the floor map");
+                }
+                return new PITiledFloorMap(store(key, in), maxTileCacheSize);
+            }
+        };
+    }
+
+    /**
+     * Reader that decodes an image at the requested size without caching it.
+     *
+     * @param reqWidth requested width, 0 for full size
+     * @param reqHeight requested height, 0 for full size
+     * @return response reader
+     */
+    static PITransport.ResponseReader sampledReader(final int reqWidth, final int reqHeight) {
+        return new PITransport.ResponseReader() {
+            @Override
+            public Object read(InputStream in) throws IOException {
+                if (reqWidth <= 0 || reqHeight <= 0) {
+                    return BitmapFactory.decodeStream(in);
+                }
+                // the encoded image is far smaller than the Bitmap, hold it to measure it first
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                byte[] buffer = new byte[BUFFER_SIZE];
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    bytes.write(buffer, 0, read);
+                }
+                byte[] image = bytes.toByteArray();
+
+                BitmapFactory.Options options = new BitmapFactory.Options();
+                options.inJustDecodeBounds = true;
+                BitmapFactory.decodeByteArray(image, 0, image.length, options);
+                options.inSampleSize = calculateInSampleSize(options, reqWidth, reqHeight);
+                options.inJustDecodeBounds = false;
+                return BitmapFactory.decodeByteArray(image, 0, image.length, options);
+            }
+        };
+    }
+
+    /**
+     * Largest power of two sample size that keeps both dimensions at or above the requested size.
+     *
+     * @param options options holding the image's outWidth and outHeight
+     * @param reqWidth requested width, 0 for full size
+     * @param reqHeight requested height, 0 for full size
+     * @return sample size
+     */
+    static int calculateInSampleSize(BitmapFactory.Options options, int reqWidth, int reqHeight) {
+        int sampleSize = 1;
+        if (reqWidth <= 0 || reqHeight <= 0) {
+            return sampleSize;
+        }
+        int halfWidth = options.outWidth / 2;
+        int halfHeight = options.outHeight / 2;
+        while (halfWidth / sampleSize >= reqWidth && halfHeight / sampleSize >= reqHeight) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    private Bitmap decodeFile(File file, int reqWidth, int reqHeight) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(file.getPath(), options);
+        options.inSampleSize = calculateInSampleSize(options, reqWidth, reqHeight);
+        options.inJustDecodeBounds = false;
+        Bitmap bitmap = BitmapFactory.decodeFile(file.getPath(), options);
+        if (bitmap == null) {
+            PILogger.e(TAG, "could not decode cached map " + file.getName());
+            file.delete();
+        }
+        return bitmap;
+    }
+
+    private File store(String key, InputStream in) throws IOException {
+        File temp = File.createTempFile("map", TEMP_SUFFIX, mDirectory);
+        OutputStream out = new FileOutputStream(temp);
+        try {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+        } catch (IOException e) {
+            out.close();
+            temp.delete();
+            throw e;
+        }
+        out.close();
+        return commit(key, temp);
+    }
+
+    private synchronized File commit(String key, File temp) throws IOException {
+        File file = getFile(key);
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            throw new IOException("could not store map " + file.getName());
+        }
+        // decoded copies of the old map are out of date
+        for (String memoryKey : mMemoryCache.snapshot().keySet()) {
+            if (memoryKey.startsWith(key + "@")) {
+                mMemoryCache.remove(memoryKey);
+            }
+        }
+        trimToSize(file);
+        return file;
+    }
+
+    // evict the least recently downloaded maps until the disk cache fits
+    private void trimToSize(File keep) {
+        File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        long size = 0;
+        for (File file : files) {
+            size += file.length();
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                long l = lhs.lastModified();
+                long r = rhs.lastModified();
+                return l < r ? -1 : (l == r ? 0 : 1);
+            }
+        });
+        for (int i = 0; i < files.length && size > mMaxDiskSize; i++) {
+            // never evict the map being returned, or downloads still in flight
+            if (files[i].equals(keep) || files[i].getName().endsWith(TEMP_SUFFIX)) {
+                continue;
+            }
+            long length = files[i].length();
+            if (files[i].delete()) {
+                size -= length;
+            }
+        }
+    }
+
+    private File getFile(String key) {
+        try {
+            return new File(mDirectory, URLEncoder.encode(key, "UTF-8"));
+        } catch (UnsupportedEncodingException e) {
+            // UTF-8 is always supported
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private String memoryKey(String key, int reqWidth, int reqHeight) {
+        return key + "@" + Math.max(reqWidth, 0) + "x" + Math.max(reqHeight, 0);
+    }
+}
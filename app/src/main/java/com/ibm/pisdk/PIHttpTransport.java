@@ -0,0 +1,159 @@
+/**
+ * Copyright (c) 2015 IBM Corporation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+package com.ibm.pisdk;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Map;
+
+/**
+ * Default {@link PITransport PITransport} built on HttpURLConnection.
+ *
+ * HttpURLConnection keeps a pool of persistent keep-alive connections per host, but a connection
+ * only goes back to the pool once its response stream has been read to the end and closed.  This
+ * transport always drains and closes the stream, and never calls disconnect(), so back to back
+ * requests to the same host reuse the TCP and TLS session instead of handshaking each time.
+ *
+ * @author Ciaran Hannigan (cehannig@us.ibm.com)
+ */
+public class PIHttpTransport implements PITransport {
+    private static final String TAG = PIHttpTransport.class.getSimpleName();
+
+    private static final int BUFFER_SIZE = 4096;
+    // past this many unread bytes it's cheaper to drop the connection than to drain it
+    private static final int MAX_DRAIN_BYTES = 64 * 1024;
+
+    private final int mConnectTimeout;
+    private final int mReadTimeout;
+
+    /**
+     * Constructor
+     *
+     * @param connectTimeout connect timeout in ms
+     * @param readTimeout read timeout in ms
+     */
+    public PIHttpTransport(int connectTimeout, int readTimeout) {
+        mConnectTimeout = connectTimeout;
+        mReadTimeout = readTimeout;
+    }
+
+    @Override
+    public PIAPIResult execute(String method, URL url, Map<String, String> headers, byte[] body, ResponseReader reader) {
+        PIAPIResult result = new PIAPIResult();
+        InputStream in = null;
+        try {
+            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+            connection.setReadTimeout(mReadTimeout);
+            connection.setConnectTimeout(mConnectTimeout);
+            connection.setRequestMethod(method);
+            connection.setDoInput(true);
+            for (Map.Entry<String, String> header : headers.entrySet()) {
+                connection.setRequestProperty(header.getKey(), header.getValue());
+            }
+
+            // send payload
+            if (body != null) {
+                connection.setDoOutput(true);
+                connection.setFixedLengthStreamingMode(body.length);
+                OutputStream out = connection.getOutputStream();
+                try {
+                    out.write(body);
+                } finally {
+                    out.close();
+                }
+            }
+
+            int responseCode = connection.getResponseCode();
+            result.setResponseCode(responseCode);
+            result.setHeader(connection.getHeaderFields());
+
+            // build result object
+            in = isSuccessfulResponse(responseCode) ? connection.getInputStream() : connection.getErrorStream();
+            if (in == null) {
+                result.setResult("");
+            } else if (responseCode >= HttpURLConnection.HTTP_OK && responseCode < HttpURLConnection.HTTP_MULT_CHOICE) {
+                try {
+                    result.setResult(reader.read(in));
+                } catch (RuntimeException e) {
+                    // a body the reader doesn't understand, e.g. an error page served with a 200
+                    throw new IOException("could not read the response: " + e.getMessage(), e);
+                }
+            } else {
+                result.setResult(readString(in));
+            }
+        } catch (IOException e) {
+            // whatever was received is unusable, the exchange failed as a whole
+            result.setResponseCode(0);
+            result.setResult(null);
+            result.setException(e);
+            e.printStackTrace();
+        } finally {
+            if (in != null) {
+                drainAndClose(in);
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Reads a stream into a String.
+     *
+     * @param in stream to read, UTF-8 encoded
+     * @return contents of the stream
+     * @throws IOException if the stream could not be read
+     */
+    static String readString(InputStream in) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        Reader reader = new InputStreamReader(in, "UTF-8");
+        char[] buffer = new char[BUFFER_SIZE];
+        int read;
+        while ((read = reader.read(buffer)) != -1) {
+            sb.append(buffer, 0, read);
+        }
+        return sb.toString();
+    }
+
+    // read whatever the reader left behind so the connection can go back to the pool
+    private void drainAndClose(InputStream in) {
+        try {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int drained = 0;
+            int read;
+            while (drained < MAX_DRAIN_BYTES && (read = in.read(buffer)) != -1) {
+                drained += read;
+            }
+        } catch (IOException e) {
+            PILogger.d(TAG, "could not drain response: " + e.getMessage());
+        } finally {
+            try {
+                in.close();
+            } catch (IOException e) {
+                PILogger.d(TAG, "could not close response: " + e.getMessage());
+            }
+        }
+    }
+
+    private boolean isSuccessfulResponse(int responseCode) {
+        return responseCode >= HttpURLConnection.HTTP_OK && responseCode < HttpURLConnection.HTTP_BAD_REQUEST;
+    }
+}
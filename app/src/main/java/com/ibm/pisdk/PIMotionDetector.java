@@ -0,0 +1,149 @@
+/**
+ * Copyright (c) 2015 IBM Corporation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package com.ibm.pisdk;
+
+import android.content.Context;
+import android.hardware.Sensor;
+import android.hardware.SensorEvent;
+import android.hardware.SensorEventListener;
+import android.hardware.SensorManager;
+import android.hardware.TriggerEvent;
+import android.hardware.TriggerEventListener;
+import android.os.Handler;
+import android.os.Looper;
+
+/**
+ * This class detects that the device is moving.  It uses the significant motion sensor, which wakes
+ * the device without draining the battery, and falls back to the accelerometer on devices without one.
+ * The accelerometer is duty cycled: it is sampled for a couple of seconds at a time, and only while the
+ * device is awake anyway, since the samples are scheduled on the main thread without a wake lock.
+ *
+ * Used as a helper class in PIBeaconSensorService.
+ *
+ * @author Ciaran Hannigan (cehannig@us.ibm.com)
+ */
+class PIMotionDetector {
+    private static final String TAG = PIMotionDetector.class.getSimpleName();
+
+    // acceleration beyond gravity that counts as moving
+    private static final float ACCELERATION_THRESHOLD = 1.5f; /* m/s^2 */
+    // how long the accelerometer listens, and how long it is off between samples
+    private static final long SAMPLE_DURATION = 2000; /* milliseconds */
+    private static final long SAMPLE_INTERVAL = 30000; /* milliseconds */
+
+    /**
+     * Called on the main thread when the device moves.
+     */
+    interface Listener {
+        void onMotion();
+    }
+
+    private final SensorManager mSensorManager;
+    private final Listener mListener;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private Sensor mSensor;
+
+    private final TriggerEventListener mTriggerListener = new TriggerEventListener() {
+        @Override
+        public void onTrigger(TriggerEvent event) {
+            mListener.onMotion();
+            // a trigger sensor is disabled after it fires
+            mSensorManager.requestTriggerSensor(this, mSensor);
+        }
+    };
+
+    private final SensorEventListener mAccelerometerListener = new SensorEventListener() {
+        @Override
+        public void onSensorChanged(SensorEvent event) {
+            float x = event.values[0];
+            float y = event.values[1];
+            float z = event.values[2];
+            double acceleration = Math.abs(Math.sqrt(x * x + y * y + z * z) - SensorManager.GRAVITY_EARTH);
+            if (acceleration > ACCELERATION_THRESHOLD) {
+                // one report per sample is enough
+                mHandler.removeCallbacks(mEndSample);
+                mEndSample.run();
+                mListener.onMotion();
+            }
+        }
+
+        @Override
+        public void onAccuracyChanged(Sensor sensor, int accuracy) {
+            // not used
+        }
+    };
+
+    private final Runnable mStartSample = new Runnable() {
+        @Override
+        public void run() {
+            if (!mSensorManager.registerListener(mAccelerometerListener, mSensor, SensorManager.SENSOR_DELAY_NORMAL)) {
+                PILogger.e(TAG, "could not listen to the accelerometer");
+            }
+            mHandler.postDelayed(mEndSample, SAMPLE_DURATION);
+        }
+    };
+
+    private final Runnable mEndSample = new Runnable() {
+        @Override
+        public void run() {
+            mSensorManager.unregisterListener(mAccelerometerListener);
+            mHandler.postDelayed(mStartSample, SAMPLE_INTERVAL);
+        }
+    };
+
+    PIMotionDetector(Context context, Listener listener) {
+        mSensorManager = (SensorManager) context.getSystemService(Context.SENSOR_SERVICE);
+        mListener = listener;
+    }
+
+    /**
+     * Called on the main thread.
+     *
+     * @return false if the device has no motion sensor
+     */
+    boolean start() {
+        if (mSensorManager == null || mSensor != null) {
+            return mSensor != null;
+        }
+        mSensor = mSensorManager.getDefaultSensor(Sensor.TYPE_SIGNIFICANT_MOTION);
+        if (mSensor != null) {
+            PILogger.d(TAG, "detecting motion with the significant motion sensor");
+            return mSensorManager.requestTriggerSensor(mTriggerListener, mSensor);
+        }
+        mSensor = mSensorManager.getDefaultSensor(Sensor.TYPE_ACCELEROMETER);
+        if (mSensor != null) {
+            PILogger.d(TAG, "detecting motion with the accelerometer, " + SAMPLE_DURATION + "ms every " + SAMPLE_INTERVAL + "ms");
+            mStartSample.run();
+            return true;
+        }
+        PILogger.e(TAG, "no motion sensor, scan periods adapt to ranging results only");
+        return false;
+    }
+
+    void stop() {
+        if (mSensor == null) {
+            return;
+        }
+        if (mSensor.getType() == Sensor.TYPE_SIGNIFICANT_MOTION) {
+            mSensorManager.cancelTriggerSensor(mTriggerListener, mSensor);
+        } else {
+            mHandler.removeCallbacks(mStartSample);
+            mHandler.removeCallbacks(mEndSample);
+            mSensorManager.unregisterListener(mAccelerometerListener);
+        }
+        mSensor = null;
+    }
+}
@@ -0,0 +1,63 @@
+/**
+ * Copyright (c) 2015 IBM Corporation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+package com.ibm.pisdk;
+
+import org.altbeacon.beacon.Region;
+
+/**
+ * The device entered or exited a region.
+ *
+ * @author Ciaran Hannigan (cehannig@us.ibm.com)
+ */
+public final class PIRegionEvent implements PIStream.Timestamped {
+    private final Region mRegion;
+    private final boolean mEntered;
+    private final long mTimestamp;
+
+    PIRegionEvent(Region region, boolean entered, long timestamp) {
+        mRegion = region;
+        mEntered = entered;
+        mTimestamp = timestamp;
+    }
+
+    /**
+     * @return the region entered or exited
+     */
+    public Region getRegion() {
+        return mRegion;
+    }
+
+    /**
+     * @return true if the region was entered, false if it was exited
+     */
+    public boolean isEntered() {
+        return mEntered;
+    }
+
+    /**
+     * @return time of the event in ms
+     */
+    @Override
+    public long getTimestamp() {
+        return mTimestamp;
+    }
+
+    @Override
+    public String toString() {
+        return "PIRegionEvent{" + (mEntered ? "entered " : "exited ") + mRegion + "}";
+    }
+}
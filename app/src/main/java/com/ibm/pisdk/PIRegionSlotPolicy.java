@@ -0,0 +1,123 @@
+/**
+ * Copyright (c) 2015 IBM Corporation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+package com.ibm.pisdk;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * This class scores beacon regions for the limited number of monitoring slots.  A region scores higher
+ * the more recently its beacon was seen, the longer the device has stayed near it, the closer the
+ * beacon is and the more enter and exit events it has produced.  A region only takes a slot from a
+ * monitored one when it scores higher by more than a margin, so beacons of similar value don't keep
+ * swapping places.
+ *
+ * Used as a helper class in RegionManager.
+ *
+ * @author Ciaran Hannigan (cehannig@us.ibm.com)
+ */
+class PIRegionSlotPolicy {
+    // score a region must gain over the lowest monitored region to take its slot
+    private static final double HYSTERESIS = 0.15;
+
+    // weights of the score components, which are each between 0 and 1
+    private static final double RECENCY_WEIGHT = 0.35;
+    private static final double DWELL_WEIGHT = 0.2;
+    private static final double PROXIMITY_WEIGHT = 0.3;
+    private static final double HISTORY_WEIGHT = 0.15;
+
+    private static final long RECENCY_HALF_LIFE = 15000; /* milliseconds */
+    private static final long DWELL_SATURATION = 300000; /* milliseconds */
+    // a beacon not seen for this long starts a new visit
+    private static final long DWELL_GAP = 60000; /* milliseconds */
+    private static final int HISTORY_SATURATION = 4; /* events */
+    // bounds the memory used in venues with many beacons, least recently seen are forgotten first
+    private static final int MAX_CANDIDATES = 256;
+
+    // in order of last sighting, only onSeen moves an entry so scoring and events don't change what is evicted
+    private final LinkedHashMap<String, Candidate> mCandidates = new LinkedHashMap<String, Candidate>(64, 0.75f) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Candidate> eldest) {
+            return size() > MAX_CANDIDATES;
+        }
+    };
+
+    /**
+     * Records a sighting of a region's beacon.
+     *
+     * @param key the region's key
+     * @param distance smoothed distance to the beacon in meters, negative if unknown
+     * @param now time of the sighting in ms
+     */
+    void onSeen(String key, double distance, long now) {
+        Candidate candidate = mCandidates.remove(key);
+        if (candidate == null) {
+            candidate = new Candidate();
+            candidate.mFirstSeen = now;
+        } else if (now - candidate.mLastSeen > DWELL_GAP) {
+            candidate.mFirstSeen = now;
+        }
+        mCandidates.put(key, candidate);
+        candidate.mLastSeen = now;
+        candidate.mDistance = distance;
+    }
+
+    /**
+     * Records an enter or exit event of a region.
+     *
+     * @param key the region's key
+     */
+    void onRegionEvent(String key) {
+        Candidate candidate = mCandidates.get(key);
+        if (candidate != null && candidate.mEvents < HISTORY_SATURATION) {
+            candidate.mEvents++;
+        }
+    }
+
+    /**
+     * @param key the region's key
+     * @param now current time in ms
+     * @return the region's score, between 0 and 1, 0 if it hasn't been seen
+     */
+    double score(String key, long now) {
+        Candidate candidate = mCandidates.get(key);
+        if (candidate == null) {
+            return 0;
+        }
+        double recency = Math.pow(0.5, (double) Math.max(0, now - candidate.mLastSeen) / RECENCY_HALF_LIFE);
+        double dwell = Math.min(1.0, (double) (candidate.mLastSeen - candidate.mFirstSeen) / DWELL_SATURATION);
+        double proximity = candidate.mDistance < 0 ? 0 : 1 / (1 + candidate.mDistance);
+        double history = (double) candidate.mEvents / HISTORY_SATURATION;
+        return RECENCY_WEIGHT * recency + DWELL_WEIGHT * dwell + PROXIMITY_WEIGHT * proximity + HISTORY_WEIGHT * history;
+    }
+
+    /**
+     * @param candidateScore score of the region wanting a slot
+     * @param lowestScore score of the lowest monitored region
+     * @return true if the candidate should take the lowest region's slot
+     */
+    boolean shouldReplace(double candidateScore, double lowestScore) {
+        return candidateScore - lowestScore > HYSTERESIS;
+    }
+
+    private static class Candidate {
+        private long mFirstSeen;
+        private long mLastSeen;
+        private double mDistance = -1;
+        private int mEvents;
+    }
+}
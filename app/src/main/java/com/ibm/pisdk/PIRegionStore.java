@@ -0,0 +1,133 @@
+/**
+ * Copyright (c) 2015 IBM Corporation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+package com.ibm.pisdk;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import org.altbeacon.beacon.Identifier;
+import org.altbeacon.beacon.Region;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * This class persists the service's scanning state across processes: whether it was scanning and for
+ * which adapter and device, the organization's proximity UUIDs and the beacon regions being monitored.
+ * It is read once, synchronously, when the service is created, so ranging starts with the saved regions
+ * instead of waiting on the network.  The saved adapter handle only matches an adapter in the same
+ * process, so a service restarted by the OS does not resume scanning on its own.
+ *
+ * Used as a helper class in PIBeaconSensorService.
+ *
+ * @author Ciaran Hannigan (cehannig@us.ibm.com)
+ */
+class PIRegionStore {
+    private static final String PREFERENCES_NAME = "com.ibm.pisdk.regions";
+    private static final String KEY_SCANNING = "scanning";
+    private static final String KEY_ADAPTER_HANDLE = "adapter_handle";
+    private static final String KEY_DEVICE_ID = "device_id";
+    private static final String KEY_UUIDS = "uuids";
+    private static final String KEY_BEACON_REGIONS = "beacon_regions";
+
+    private final SharedPreferences mPreferences;
+
+    PIRegionStore(Context context) {
+        mPreferences = context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * @return true if the service was scanning when it was last stopped
+     */
+    boolean isScanning() {
+        return mPreferences.getBoolean(KEY_SCANNING, false);
+    }
+
+    void setScanning(boolean scanning) {
+        mPreferences.edit().putBoolean(KEY_SCANNING, scanning).apply();
+    }
+
+    /**
+     * @return handle of the adapter last scanned for, see PIAPIAdapterRegistry
+     */
+    String getAdapterHandle() {
+        return mPreferences.getString(KEY_ADAPTER_HANDLE, null);
+    }
+
+    /**
+     * @return id of the device last scanned for
+     */
+    String getDeviceId() {
+        return mPreferences.getString(KEY_DEVICE_ID, null);
+    }
+
+    /**
+     * @param adapterHandle handle of the adapter scanning for
+     * @param deviceId id of the device scanning for
+     */
+    void setScanning(String adapterHandle, String deviceId) {
+        mPreferences.edit()
+                .putBoolean(KEY_SCANNING, true)
+                .putString(KEY_ADAPTER_HANDLE, adapterHandle)
+                .putString(KEY_DEVICE_ID, deviceId)
+                .apply();
+    }
+
+    /**
+     * @return the last known proximity UUIDs, empty if none were saved
+     */
+    Set<String> getUuids() {
+        return new HashSet<String>(mPreferences.getStringSet(KEY_UUIDS, Collections.<String>emptySet()));
+    }
+
+    /**
+     * @return the beacon regions last monitored, empty if none were saved
+     */
+    List<Region> getBeaconRegions() {
+        Set<String> keys = mPreferences.getStringSet(KEY_BEACON_REGIONS, Collections.<String>emptySet());
+        List<Region> regions = new ArrayList<Region>(keys.size());
+        for (String key : keys) {
+            // uuid;major;minor, as built by RegionManager
+            String[] ids = key.split(";");
+            if (ids.length == 3) {
+                try {
+                    regions.add(new Region(key, Identifier.parse(ids[0]), Identifier.parse(ids[1]), Identifier.parse(ids[2])));
+                } catch (IllegalArgumentException e) {
+                    PILogger.e(PIRegionStore.class.getSimpleName(), "ignoring saved region: " + key);
+                }
+            }
+        }
+        return regions;
+    }
+
+    /**
+     * Saves the region state, written in the background.
+     *
+     * @param uuids proximity UUIDs
+     * @param beaconRegions keys of the beacon regions monitored
+     */
+    void save(Collection<String> uuids, Collection<String> beaconRegions) {
+        mPreferences.edit()
+                .putStringSet(KEY_UUIDS, new HashSet<String>(uuids))
+                .putStringSet(KEY_BEACON_REGIONS, new HashSet<String>(beaconRegions))
+                .apply();
+    }
+}
@@ -0,0 +1,88 @@
+/**
+ * Copyright (c) 2015 IBM Corporation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+package com.ibm.pisdk;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This class coalesces identical requests that are in flight at the same time.  The first caller
+ * performs the request; callers arriving before it completes are queued behind it, and every one of
+ * them receives the result of the single request and parse.
+ *
+ * Used as a helper class in PIAPIAdapter.
+ *
+ * @author Ciaran Hannigan (cehannig@us.ibm.com)
+ */
+class PIRequestCoalescer {
+    private final Map<String, List<PIAPICompletionHandler>> mWaiting = new HashMap<String, List<PIAPICompletionHandler>>();
+    private long mCoalescedCount;
+
+    /**
+     * Registers a caller for a request.
+     *
+     * @param key identifies the request, method and url
+     * @param completionHandler caller's callback
+     * @return true if the caller should perform the request, false if it joined one already in flight
+     */
+    synchronized boolean join(String key, PIAPICompletionHandler completionHandler) {
+        List<PIAPICompletionHandler> waiting = mWaiting.get(key);
+        if (waiting != null) {
+            waiting.add(completionHandler);
+            mCoalescedCount++;
+            return false;
+        }
+        waiting = new ArrayList<PIAPICompletionHandler>();
+        waiting.add(completionHandler);
+        mWaiting.put(key, waiting);
+        return true;
+    }
+
+    /**
+     * Hands the result of a request to every caller waiting on it.
+     *
+     * @param key identifies the request, method and url
+     * @param result result of the request
+     */
+    void complete(String key, PIAPIResult result) {
+        List<PIAPICompletionHandler> waiting;
+        synchronized (this) {
+            waiting = mWaiting.remove(key);
+        }
+        if (waiting == null) {
+            return;
+        }
+        // each caller gets its own result to post-process, copies are taken before anyone touches it
+        List<PIAPIResult> results = new ArrayList<PIAPIResult>(waiting.size());
+        results.add(result);
+        for (int i = 1; i < waiting.size(); i++) {
+            results.add(result.copy());
+        }
+        for (int i = 0; i < waiting.size(); i++) {
+            waiting.get(i).onComplete(results.get(i));
+        }
+    }
+
+    /**
+     * @return number of callers that were served by a request already in flight
+     */
+    synchronized long getCoalescedCount() {
+        return mCoalescedCount;
+    }
+}
@@ -0,0 +1,152 @@
+/**
+ * Copyright (c) 2015 IBM Corporation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+package com.ibm.pisdk;
+
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This class caches parsed management server responses along with their ETag and Last-Modified
+ * validators.  Cached requests are sent as conditional GETs, and when the server answers
+ * 304 Not Modified the previously parsed doctypes are handed back without reading or parsing anything.
+ *
+ * Venue configuration (sites, floors, zones, beacons, sensors and proximity UUIDs) goes through this
+ * cache.  The hit and miss counters can be used to confirm that the server honours the validators.
+ *
+ * @author Ciaran Hannigan (cehannig@us.ibm.com)
+ */
+public class PIResponseCache implements PIConditionalCache {
+    static final String HEADER_ETAG = "ETag";
+    static final String HEADER_LAST_MODIFIED = "Last-Modified";
+    static final String HEADER_IF_NONE_MATCH = "If-None-Match";
+    static final String HEADER_IF_MODIFIED_SINCE = "If-Modified-Since";
+
+    // maximum number of responses to keep, least recently used are dropped first
+    private static final int MAX_ENTRIES = 64;
+
+    private static class Entry {
+        final String etag;
+        final String lastModified;
+        final Object result;
+
+        Entry(String etag, String lastModified, Object result) {
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.result = result;
+        }
+    }
+
+    private final LinkedHashMap<String, Entry> mEntries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+    private long mHitCount;
+    private long mMissCount;
+
+    PIResponseCache() {}
+
+    /**
+     * Adds the validators of a cached response to the request headers.
+     *
+     * @param key request url
+     * @param headers request headers
+     * @return the headers with validators added, or the headers passed in if nothing is cached
+     */
+    @Override
+    public synchronized Map<String, String> addValidators(String key, Map<String, String> headers) {
+        Entry entry = mEntries.get(key);
+        if (entry == null) {
+            return headers;
+        }
+        Map<String, String> conditionalHeaders = new HashMap<String, String>(headers);
+        if (entry.etag != null) {
+            conditionalHeaders.put(HEADER_IF_NONE_MATCH, entry.etag);
+        }
+        if (entry.lastModified != null) {
+            conditionalHeaders.put(HEADER_IF_MODIFIED_SINCE, entry.lastModified);
+        }
+        return conditionalHeaders;
+    }
+
+    /**
+     * Updates the cache from a response.  A 304 is rewritten into a 200 carrying the cached result.
+     *
+     * @param key request url
+     * @param result result of the request
+     */
+    @Override
+    public synchronized void onResponse(String key, PIAPIResult result) {
+        if (result.getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+            Entry entry = mEntries.get(key);
+            if (entry != null) {
+                mHitCount++;
+                result.setResult(copyOf(entry.result));
+                result.setResponseCode(HttpURLConnection.HTTP_OK);
+            }
+        } else if (result.getResponseCode() == HttpURLConnection.HTTP_OK && result.getException() == null) {
+            mMissCount++;
+            String etag = result.getHeaderField(HEADER_ETAG);
+            String lastModified = result.getHeaderField(HEADER_LAST_MODIFIED);
+            if (etag != null || lastModified != null) {
+                mEntries.put(key, new Entry(etag, lastModified, copyOf(result.getResult())));
+            } else {
+                mEntries.remove(key);
+            }
+        }
+    }
+
+    /**
+     * Number of requests answered from the cache with a 304.
+     *
+     * @return hit count
+     */
+    public synchronized long getHitCount() {
+        return mHitCount;
+    }
+
+    /**
+     * Number of requests that had to download and parse the full response.
+     *
+     * @return miss count
+     */
+    public synchronized long getMissCount() {
+        return mMissCount;
+    }
+
+    /**
+     * Drops every cached response and resets the counters.
+     */
+    public synchronized void clear() {
+        mEntries.clear();
+        mHitCount = 0;
+        mMissCount = 0;
+    }
+
+    // callers get their own list, the doctypes inside are read only
+    private Object copyOf(Object result) {
+        if (result instanceof List) {
+            return new ArrayList<Object>((List<?>) result);
+        }
+        return result;
+    }
+}
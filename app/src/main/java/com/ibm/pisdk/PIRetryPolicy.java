@@ -0,0 +1,126 @@
+/**
+ * Copyright (c) 2015 IBM Corporation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+package com.ibm.pisdk;
+
+import java.net.ConnectException;
+import java.net.HttpURLConnection;
+import java.net.NoRouteToHostException;
+import java.net.UnknownHostException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * This class decides whether a failed request is retried, and how long to wait before retrying.
+ *
+ * Delays grow exponentially from the base delay up to the maximum delay, with full jitter so that
+ * many devices failing at the same moment don't retry in lockstep.  A Retry-After header from the
+ * server takes precedence; if it asks for a longer wait than the maximum delay the request is not
+ * retried at all.
+ *
+ * GET is idempotent and is retried on connection failures, timeouts, 429 and 5xx responses.  POST and
+ * PUT are only retried when the request is known not to have been processed: the connection could not
+ * be established, or the server answered 429 or 503.
+ *
+ * @author Ciaran Hannigan (cehannig@us.ibm.com)
+ */
+public class PIRetryPolicy {
+    private static final int HTTP_TOO_MANY_REQUESTS = 429;
+    private static final String HEADER_RETRY_AFTER = "Retry-After";
+
+    private final int mMaxAttempts;
+    private final long mBaseDelay;
+    private final long mMaxDelay;
+    private final Random mRandom = new Random();
+
+    /**
+     * Constructor
+     *
+     * @param maxAttempts total number of attempts, including the first; 1 disables retries
+     * @param baseDelay delay in ms before the first retry, before jitter
+     * @param maxDelay cap in ms on any single delay
+     */
+    public PIRetryPolicy(int maxAttempts, long baseDelay, long maxDelay) {
+        mMaxAttempts = maxAttempts;
+        mBaseDelay = baseDelay;
+        mMaxDelay = maxDelay;
+    }
+
+    /**
+     * Returns how long to wait before the next attempt.
+     *
+     * @param method HTTP method of the request
+     * @param result result of the attempt that just finished
+     * @param attempt number of attempts made so far
+     * @return delay in ms, or -1 if the request should not be retried
+     */
+    public long getRetryDelay(String method, PIAPIResult result, int attempt) {
+        if (attempt >= mMaxAttempts || !isRetryable(method, result)) {
+            return -1;
+        }
+
+        long retryAfter = getRetryAfter(result);
+        if (retryAfter >= 0) {
+            return retryAfter <= mMaxDelay ? retryAfter : -1;
+        }
+
+        // full jitter: uniformly random between 0 and the capped exponential delay
+        long ceiling = Math.min(mMaxDelay, mBaseDelay << Math.min(attempt - 1, 30));
+        return (long) (mRandom.nextDouble() * ceiling);
+    }
+
+    private boolean isRetryable(String method, PIAPIResult result) {
+        int responseCode = result.getResponseCode();
+        if (responseCode == HTTP_TOO_MANY_REQUESTS || responseCode == HttpURLConnection.HTTP_UNAVAILABLE) {
+            // the server did not process the request
+            return true;
+        }
+        if ("GET".equals(method)) {
+            return responseCode == 0
+                    || responseCode == HttpURLConnection.HTTP_CLIENT_TIMEOUT
+                    || responseCode >= HttpURLConnection.HTTP_INTERNAL_ERROR;
+        }
+        // anything else may have reached the server, only retry if the request never left the device
+        Exception exception = result.getException();
+        return responseCode == 0 && (exception instanceof ConnectException
+                || exception instanceof UnknownHostException
+                || exception instanceof NoRouteToHostException);
+    }
+
+    // Retry-After is either a number of seconds or an HTTP date
+    private long getRetryAfter(PIAPIResult result) {
+        String retryAfter = result.getHeaderField(HEADER_RETRY_AFTER);
+        if (retryAfter == null) {
+            return -1;
+        }
+        retryAfter = retryAfter.trim();
+        try {
+            return Math.max(0, Long.parseLong(retryAfter) * 1000);
+        } catch (NumberFormatException e) {
+            // not seconds, try a date
+        }
+        try {
+            SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+            Date date = format.parse(retryAfter);
+            return Math.max(0, date.getTime() - System.currentTimeMillis());
+        } catch (ParseException e) {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,168 @@
+/**
+ * Copyright (c) 2015 IBM Corporation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+package com.ibm.pisdk;
+
+import java.io.Serializable;
+
+/**
+ * This class smooths the RSSI readings of a beacon before its distance is estimated, so the nearest
+ * beacon doesn't flap between neighbours on every noisy reading.  The sensor service keeps a separate
+ * instance per beacon, created with {@link #newInstance() newInstance}.
+ *
+ * Subclass it to provide your own filter, or use one of the filters provided:
+ * {@link #movingAverage(int) movingAverage}, {@link #exponential(double) exponential} or
+ * {@link #kalman(double, double) kalman}.
+ *
+ * @author Ciaran Hannigan (cehannig@us.ibm.com)
+ */
+public abstract class PIRssiFilter implements Serializable {
+
+    /**
+     * Creates a filter of the same kind and configuration, with no readings yet.
+     *
+     * @return a new filter
+     */
+    public abstract PIRssiFilter newInstance();
+
+    /**
+     * Adds a reading.
+     *
+     * @param rssi the beacon's signal strength
+     * @return the smoothed signal strength
+     */
+    public abstract double filter(double rssi);
+
+    /**
+     * Averages the last readings.
+     *
+     * @param windowSize number of readings to average
+     * @return a moving average filter
+     */
+    public static PIRssiFilter movingAverage(int windowSize) {
+        return new MovingAverage(windowSize);
+    }
+
+    /**
+     * Exponential smoothing, each reading moves the estimate by alpha of the difference.
+     *
+     * @param alpha weight of a new reading, between 0 and 1
+     * @return an exponential smoothing filter
+     */
+    public static PIRssiFilter exponential(double alpha) {
+        return new Exponential(alpha);
+    }
+
+    /**
+     * One dimensional Kalman filter, modelling the RSSI as a constant disturbed by noise.
+     *
+     * @param processNoise variance of the real signal between readings, how fast it can change
+     * @param measurementNoise variance of a reading around the real signal
+     * @return a Kalman filter
+     */
+    public static PIRssiFilter kalman(double processNoise, double measurementNoise) {
+        return new Kalman(processNoise, measurementNoise);
+    }
+
+    private static class MovingAverage extends PIRssiFilter {
+        private final double[] mReadings;
+        private int mCount;
+        private int mNext;
+        private double mSum;
+
+        MovingAverage(int windowSize) {
+            mReadings = new double[windowSize];
+        }
+
+        @Override
+        public PIRssiFilter newInstance() {
+            return new MovingAverage(mReadings.length);
+        }
+
+        @Override
+        public double filter(double rssi) {
+            if (mCount == mReadings.length) {
+                mSum -= mReadings[mNext];
+            } else {
+                mCount++;
+            }
+            mReadings[mNext] = rssi;
+            mSum += rssi;
+            mNext = (mNext + 1) % mReadings.length;
+            return mSum / mCount;
+        }
+    }
+
+    private static class Exponential extends PIRssiFilter {
+        private final double mAlpha;
+        private double mEstimate;
+        private boolean mHasEstimate;
+
+        Exponential(double alpha) {
+            mAlpha = alpha;
+        }
+
+        @Override
+        public PIRssiFilter newInstance() {
+            return new Exponential(mAlpha);
+        }
+
+        @Override
+        public double filter(double rssi) {
+            if (mHasEstimate) {
+                mEstimate += mAlpha * (rssi - mEstimate);
+            } else {
+                mEstimate = rssi;
+                mHasEstimate = true;
+            }
+            return mEstimate;
+        }
+    }
+
+    private static class Kalman extends PIRssiFilter {
+        private final double mProcessNoise;
+        private final double mMeasurementNoise;
+        private double mEstimate;
+        private double mCovariance;
+        private boolean mHasEstimate;
+
+        Kalman(double processNoise, double measurementNoise) {
+            mProcessNoise = processNoise;
+            mMeasurementNoise = measurementNoise;
+        }
+
+        @Override
+        public PIRssiFilter newInstance() {
+            return new Kalman(mProcessNoise, mMeasurementNoise);
+        }
+
+        @Override
+        public double filter(double rssi) {
+            if (!mHasEstimate) {
+                mEstimate = rssi;
+                mCovariance = mMeasurementNoise;
+                mHasEstimate = true;
+                return mEstimate;
+            }
+            // predict, then correct with the reading
+            mCovariance += mProcessNoise;
+            double gain = mCovariance / (mCovariance + mMeasurementNoise);
+            mEstimate += gain * (rssi - mEstimate);
+            mCovariance *= 1 - gain;
+            return mEstimate;
+        }
+    }
+}
@@ -0,0 +1,114 @@
+/**
+ * Copyright (c) 2015 IBM Corporation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+package com.ibm.pisdk;
+
+/**
+ * This class adapts the time between background scans to what the device is doing.  While the device
+ * is moving, or has just entered a region, scans are frequent so beacons are detected quickly.  While
+ * it is stationary, or sees no beacons, the time between scans doubles with every scan, up to a maximum,
+ * to save battery.
+ *
+ * This class has no Android dependencies, the service feeds it motion, region and ranging events.
+ *
+ * Used as a helper class in PIBeaconSensorService.
+ *
+ * @author Ciaran Hannigan (cehannig@us.ibm.com)
+ */
+class PIScanScheduler {
+    static final long MIN_BETWEEN_SCAN_PERIOD = 5000; /* milliseconds */
+    static final long MAX_BETWEEN_SCAN_PERIOD = 300000; /* milliseconds */
+    // how long the device counts as active after moving or entering a region
+    static final long ACTIVE_DURATION = 60000; /* milliseconds */
+
+    private long mBasePeriod;
+    private long mPeriod;
+    private long mActiveUntil = Long.MIN_VALUE;
+
+    /**
+     * @param basePeriod time between scans to start from, in ms
+     */
+    PIScanScheduler(long basePeriod) {
+        setBasePeriod(basePeriod);
+    }
+
+    /**
+     * @param basePeriod time between scans to start from, in ms, replaces the current period
+     */
+    synchronized void setBasePeriod(long basePeriod) {
+        mBasePeriod = basePeriod;
+        mPeriod = basePeriod;
+    }
+
+    /**
+     * The device moved.
+     *
+     * @param now current time in ms
+     */
+    synchronized void onMotion(long now) {
+        activate(now);
+    }
+
+    /**
+     * The device entered a region, scan often while it finds the beacons in it.
+     *
+     * @param now current time in ms
+     */
+    synchronized void onRegionEntered(long now) {
+        activate(now);
+    }
+
+    /**
+     * The device exited a region.
+     *
+     * @param now current time in ms
+     */
+    synchronized void onRegionExited(long now) {
+        if (now >= mActiveUntil) {
+            backOff();
+        }
+    }
+
+    /**
+     * A scan cycle completed.
+     *
+     * @param beaconCount number of beacons ranged
+     * @param now current time in ms
+     */
+    synchronized void onCycle(int beaconCount, long now) {
+        if (now < mActiveUntil) {
+            mPeriod = Math.min(MIN_BETWEEN_SCAN_PERIOD, mBasePeriod);
+        } else {
+            // stationary, whether or not beacons are in range
+            backOff();
+        }
+    }
+
+    /**
+     * @return time between background scans to use, in ms
+     */
+    synchronized long getBetweenScanPeriod() {
+        return mPeriod;
+    }
+
+    private void activate(long now) {
+        mActiveUntil = now + ACTIVE_DURATION;
+        mPeriod = Math.min(MIN_BETWEEN_SCAN_PERIOD, mBasePeriod);
+    }
+
+    private void backOff() {
+        mPeriod = Math.min(mPeriod * 2, Math.max(MAX_BETWEEN_SCAN_PERIOD, mBasePeriod));
+    }
+}
@@ -0,0 +1,115 @@
+/**
+ * Copyright (c) 2015 IBM Corporation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+package com.ibm.pisdk;
+
+/**
+ * This class decides whether a window of beacon readings is worth uploading.  A message is sent when
+ * the nearest beacon or its proximity changes, or when the nearest beacon's distance moves by more than
+ * a threshold.  While nothing changes, the device is stationary and only a heartbeat is sent.
+ *
+ * Used as a helper class in PIBeaconSensorService.
+ *
+ * @author Ciaran Hannigan (cehannig@us.ibm.com)
+ */
+class PISendPolicy {
+    static final double DEFAULT_DISTANCE_THRESHOLD = 1.0; /* meters */
+    static final long DEFAULT_HEARTBEAT_INTERVAL = 60000; /* milliseconds */
+
+    private double mDistanceThreshold = DEFAULT_DISTANCE_THRESHOLD;
+    private long mHeartbeatInterval = DEFAULT_HEARTBEAT_INTERVAL;
+
+    // what was last sent, null when nothing is in range
+    private String mLastNearest;
+    private String mLastProximity;
+    private double mLastDistance;
+    private long mLastSendTime;
+
+    private long mSentCount;
+    private long mSuppressedCount;
+
+    /**
+     * @param meters how far the nearest beacon's distance must move to be sent
+     */
+    synchronized void setDistanceThreshold(double meters) {
+        mDistanceThreshold = meters;
+    }
+
+    /**
+     * @param heartbeatInterval longest time between messages while nothing changes, in ms
+     */
+    synchronized void setHeartbeatInterval(long heartbeatInterval) {
+        mHeartbeatInterval = heartbeatInterval;
+    }
+
+    /**
+     * Decides whether to send a window, given its nearest beacon.  Nothing is recorded as sent until
+     * {@link #onSent(PIBeaconData, long) onSent} is called.
+     *
+     * @param nearest nearest beacon of the window
+     * @param now current time in ms
+     * @return true to send, false if the upload is suppressed
+     */
+    synchronized boolean shouldSend(PIBeaconData nearest, long now) {
+        boolean send = !key(nearest).equals(mLastNearest)
+                || !nearest.getProximity().equals(mLastProximity)
+                || Math.abs(nearest.getAccuracy() - mLastDistance) > mDistanceThreshold
+                || now - mLastSendTime >= mHeartbeatInterval;
+        if (!send) {
+            mSuppressedCount++;
+        }
+        return send;
+    }
+
+    /**
+     * Records that a message was built for the window and is being sent.
+     *
+     * @param nearest nearest beacon of the window
+     * @param now current time in ms
+     */
+    synchronized void onSent(PIBeaconData nearest, long now) {
+        mLastNearest = key(nearest);
+        mLastProximity = nearest.getProximity();
+        mLastDistance = nearest.getAccuracy();
+        mLastSendTime = now;
+        mSentCount++;
+    }
+
+    /**
+     * No beacons are in range, whatever comes into range next is a change.
+     */
+    synchronized void onNothingInRange() {
+        mLastNearest = null;
+    }
+
+    private static String key(PIBeaconData data) {
+        return data.getProximityUUID() + ";" + data.getMajor() + ";" + data.getMinor();
+    }
+
+    /**
+     * @return number of windows sent
+     */
+    synchronized long getSentCount() {
+        return mSentCount;
+    }
+
+    /**
+     * @return number of windows not sent because nothing changed
+     */
+    synchronized long getSuppressedCount() {
+        return mSuppressedCount;
+    }
+}
@@ -0,0 +1,185 @@
+/**
+ * Copyright (c) 2015 IBM Corporation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+package com.ibm.pisdk;
+
+import com.ibm.pisdk.doctypes.PIBeacon;
+import com.ibm.pisdk.doctypes.PIFloor;
+import com.ibm.pisdk.doctypes.PISensor;
+import com.ibm.pisdk.doctypes.PIZone;
+
+import java.net.HttpURLConnection;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+
+/**
+ * This class loads a whole site.  Once the floors are known, the zones, beacons and sensors of every
+ * floor are requested at the same time, with at most a fixed number of requests in flight, and merged
+ * into a single PIVenueSnapshot.  The first failed request fails the whole prefetch.
+ *
+ * Used as a helper class in PIAPIAdapter.
+ *
+ * @author Ciaran Hannigan (cehannig@us.ibm.com)
+ */
+class PISitePrefetcher {
+    private static final String TAG = PISitePrefetcher.class.getSimpleName();
+
+    private final PIAPIAdapter mAdapter;
+    private final String mSiteCode;
+    private final int mMaxConcurrent;
+    private final PIAPICompletionHandler mCompletionHandler;
+
+    private final Queue<FloorRequest> mPending = new ArrayDeque<FloorRequest>();
+    private int mInFlight;
+    private boolean mDone;
+    private long mStartTime;
+
+    private List<PIFloor> mFloors;
+    private final Map<String, List<PIZone>> mZones = new HashMap<String, List<PIZone>>();
+    private final Map<String, List<PIBeacon>> mBeacons = new HashMap<String, List<PIBeacon>>();
+    private final Map<String, List<PISensor>> mSensors = new HashMap<String, List<PISensor>>();
+
+    PISitePrefetcher(PIAPIAdapter adapter, String siteCode, int maxConcurrent, PIAPICompletionHandler completionHandler) {
+        mAdapter = adapter;
+        mSiteCode = siteCode;
+        mMaxConcurrent = maxConcurrent;
+        mCompletionHandler = completionHandler;
+    }
+
+    /**
+     * Starts loading the site, the completion handler is called once.
+     */
+    @SuppressWarnings("unchecked")
+    void start() {
+        mStartTime = System.currentTimeMillis();
+        mAdapter.getFloors(mSiteCode, new PIAPICompletionHandler() {
+            @Override
+            public void onComplete(PIAPIResult result) {
+                if (result.getResponseCode() != HttpURLConnection.HTTP_OK) {
+                    fail(result);
+                    return;
+                }
+                synchronized (PISitePrefetcher.this) {
+                    mFloors = (List<PIFloor>) result.getResult();
+                    for (PIFloor floor : mFloors) {
+                        mPending.add(new FloorRequest(FloorRequest.ZONES, floor.getCode()));
+                        mPending.add(new FloorRequest(FloorRequest.BEACONS, floor.getCode()));
+                        mPending.add(new FloorRequest(FloorRequest.SENSORS, floor.getCode()));
+                    }
+                }
+                next();
+            }
+        });
+    }
+
+    // issue pending requests up to the concurrency limit, or complete when nothing is left
+    private void next() {
+        List<FloorRequest> toSend = new ArrayList<FloorRequest>();
+        PIVenueSnapshot snapshot = null;
+        synchronized (this) {
+            if (mDone) {
+                return;
+            }
+            while (mInFlight < mMaxConcurrent && !mPending.isEmpty()) {
+                toSend.add(mPending.remove());
+                mInFlight++;
+            }
+            if (mInFlight == 0) {
+                mDone = true;
+                snapshot = new PIVenueSnapshot(mSiteCode, mFloors, mZones, mBeacons, mSensors);
+            }
+        }
+        if (snapshot != null) {
+            PILogger.d(TAG, "prefetched site " + mSiteCode + " in " + (System.currentTimeMillis() - mStartTime) + "ms");
+            PIAPIResult result = new PIAPIResult();
+            result.setResponseCode(HttpURLConnection.HTTP_OK);
+            result.setResult(snapshot);
+            mCompletionHandler.onComplete(result);
+            return;
+        }
+        for (FloorRequest request : toSend) {
+            request.send();
+        }
+    }
+
+    private void fail(PIAPIResult result) {
+        synchronized (this) {
+            if (mDone) {
+                return;
+            }
+            mDone = true;
+            mPending.clear();
+        }
+        PILogger.e(TAG, "prefetch of site " + mSiteCode + " failed: " + result.toString());
+        mCompletionHandler.onComplete(result);
+    }
+
+    private class FloorRequest implements PIAPICompletionHandler {
+        static final int ZONES = 0;
+        static final int BEACONS = 1;
+        static final int SENSORS = 2;
+
+        private final int mKind;
+        private final String mFloorCode;
+
+        FloorRequest(int kind, String floorCode) {
+            mKind = kind;
+            mFloorCode = floorCode;
+        }
+
+        void send() {
+            switch (mKind) {
+                case ZONES:
+                    mAdapter.getZones(mSiteCode, mFloorCode, this);
+                    break;
+                case BEACONS:
+                    mAdapter.getBeacons(mSiteCode, mFloorCode, this);
+                    break;
+                case SENSORS:
+                    mAdapter.getSensors(mSiteCode, mFloorCode, this);
+                    break;
+            }
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public void onComplete(PIAPIResult result) {
+            if (result.getResponseCode() != HttpURLConnection.HTTP_OK) {
+                fail(result);
+                return;
+            }
+            synchronized (PISitePrefetcher.this) {
+                mInFlight--;
+                switch (mKind) {
+                    case ZONES:
+                        mZones.put(mFloorCode, (List<PIZone>) result.getResult());
+                        break;
+                    case BEACONS:
+                        mBeacons.put(mFloorCode, (List<PIBeacon>) result.getResult());
+                        break;
+                    case SENSORS:
+                        mSensors.put(mFloorCode, (List<PISensor>) result.getResult());
+                        break;
+                }
+            }
+            next();
+        }
+    }
+}
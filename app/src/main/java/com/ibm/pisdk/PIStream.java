@@ -0,0 +1,535 @@
+/**
+ * Copyright (c) 2015 IBM Corporation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+package com.ibm.pisdk;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Streams of beacon snapshots and region events with backpressure.  A subscriber is only given as
+ * many items as it has requested.  Items it isn't ready for are held in a bounded buffer per
+ * subscriber; when the buffer is full the oldest item is dropped, so a slow subscriber costs a fixed
+ * amount of memory.  Operators reshape a stream for slow consumers: {@link #conflate(Publisher) conflate}
+ * keeps only the latest item, {@link #buffer(Publisher, int) buffer} and
+ * {@link #window(Publisher, long) window} group items into lists.  A partly filled list is delivered
+ * once its time is up, even if no further item arrives, and when the stream completes.
+ *
+ * Subscribers are called on the thread emitting the items, or on the thread calling
+ * {@link Subscription#request(long) request}, one call at a time.  Hand heavy work off to your own
+ * thread.
+ *
+ * This class has no Android dependencies.
+ *
+ * @author Ciaran Hannigan (cehannig@us.ibm.com)
+ */
+public final class PIStream {
+    static final int DEFAULT_BUFFER_SIZE = 16;
+
+    // flushes partly filled lists and throttled listener deliveries, only alive while one is pending
+    private static ScheduledExecutorService sTimer;
+
+    private PIStream() {
+    }
+
+    static synchronized ScheduledExecutorService getTimer() {
+        if (sTimer == null) {
+            ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "PIStream-timer");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            timer.setKeepAliveTime(30, TimeUnit.SECONDS);
+            timer.allowCoreThreadTimeOut(true);
+            sTimer = timer;
+        }
+        return sTimer;
+    }
+
+    /**
+     * A source of items.
+     *
+     * @param <T> item type
+     */
+    public interface Publisher<T> {
+        /**
+         * Subscribes to the stream, {@link Subscriber#onSubscribe(Subscription) onSubscribe} is called
+         * before any item is delivered.
+         *
+         * @param subscriber subscriber to deliver items to
+         */
+        void subscribe(Subscriber<? super T> subscriber);
+    }
+
+    /**
+     * A consumer of items.
+     *
+     * @param <T> item type
+     */
+    public interface Subscriber<T> {
+        /**
+         * Called once, nothing is delivered until items are requested from the subscription.
+         *
+         * @param subscription subscription to request items from
+         */
+        void onSubscribe(Subscription subscription);
+
+        /**
+         * @param item the next item
+         */
+        void onNext(T item);
+
+        /**
+         * The stream has failed, nothing more will be delivered.
+         *
+         * @param error cause of the failure
+         */
+        void onError(Throwable error);
+
+        /**
+         * The stream has ended, nothing more will be delivered.
+         */
+        void onComplete();
+    }
+
+    /**
+     * The link between a subscriber and a stream.
+     */
+    public interface Subscription {
+        /**
+         * Requests more items.
+         *
+         * @param n number of items, Long.MAX_VALUE for no limit
+         */
+        void request(long n);
+
+        /**
+         * Stops delivery and discards buffered items.
+         */
+        void cancel();
+    }
+
+    /**
+     * Implemented by items that carry the time they happened.
+     */
+    public interface Timestamped {
+        /**
+         * @return time in ms
+         */
+        long getTimestamp();
+    }
+
+    /**
+     * Keeps only the latest item for the subscriber, for consumers that only care about the current
+     * state.
+     *
+     * @param upstream stream to conflate
+     * @param <T> item type
+     * @return the conflated stream
+     */
+    public static <T> Publisher<T> conflate(final Publisher<T> upstream) {
+        return new Publisher<T>() {
+            @Override
+            public void subscribe(Subscriber<? super T> subscriber) {
+                upstream.subscribe(new Operator<T, T>(subscriber, 1) {
+                    @Override
+                    void onItem(T item) {
+                        emit(item);
+                    }
+                });
+            }
+        };
+    }
+
+    /**
+     * Groups items into lists of count items.  The last, shorter list is delivered when the stream
+     * completes.
+     *
+     * @param upstream stream to group
+     * @param count items per list
+     * @param <T> item type
+     * @return the stream of lists
+     */
+    public static <T> Publisher<List<T>> buffer(Publisher<T> upstream, int count) {
+        return buffer(upstream, count, 0, null);
+    }
+
+    /**
+     * Groups items into lists of count items, a shorter list is delivered once timespan ms have passed
+     * since its first item.
+     *
+     * @param upstream stream to group
+     * @param count items per list
+     * @param timespan longest time in ms an item waits for its list to fill
+     * @param <T> item type
+     * @return the stream of lists
+     */
+    public static <T> Publisher<List<T>> buffer(Publisher<T> upstream, int count, long timespan) {
+        return buffer(upstream, count, timespan, getTimer());
+    }
+
+    // timer is null to only deliver full lists, and the last one on completion
+    static <T> Publisher<List<T>> buffer(final Publisher<T> upstream, final int count, final long timespan,
+                                         final ScheduledExecutorService timer) {
+        return new Publisher<List<T>>() {
+            @Override
+            public void subscribe(Subscriber<? super List<T>> subscriber) {
+                upstream.subscribe(new TimedOperator<T>(subscriber, timer) {
+                    @Override
+                    synchronized void onItem(T item) {
+                        if (mCurrent.isEmpty()) {
+                            open(timespan);
+                        }
+                        mCurrent.add(item);
+                        if (mCurrent.size() == count) {
+                            flush();
+                        }
+                    }
+                });
+            }
+        };
+    }
+
+    /**
+     * Groups items into consecutive windows of timespan ms, by the items' own timestamps.  A window
+     * starts with its first item and is delivered when the first item past its end arrives, or timespan
+     * ms after it started if no such item comes, or when the stream completes.  Windows with no items
+     * are skipped.
+     *
+     * @param upstream stream to group
+     * @param timespan length of a window in ms
+     * @param <T> item type
+     * @return the stream of windows
+     */
+    public static <T extends Timestamped> Publisher<List<T>> window(Publisher<T> upstream, long timespan) {
+        return window(upstream, timespan, getTimer());
+    }
+
+    // timer is null to only deliver a window when the next one starts, or on completion
+    static <T extends Timestamped> Publisher<List<T>> window(final Publisher<T> upstream, final long timespan,
+                                                             final ScheduledExecutorService timer) {
+        return new Publisher<List<T>>() {
+            @Override
+            public void subscribe(Subscriber<? super List<T>> subscriber) {
+                upstream.subscribe(new TimedOperator<T>(subscriber, timer) {
+                    private long mWindowEnd;
+
+                    @Override
+                    synchronized void onItem(T item) {
+                        if (!mCurrent.isEmpty() && item.getTimestamp() >= mWindowEnd) {
+                            flush();
+                        }
+                        if (mCurrent.isEmpty()) {
+                            mWindowEnd = item.getTimestamp() + timespan;
+                            open(timespan);
+                        }
+                        mCurrent.add(item);
+                    }
+                });
+            }
+        };
+    }
+
+    /**
+     * A stream that items are pushed into.  Each subscriber gets its own bounded buffer.
+     *
+     * @param <T> item type
+     */
+    static class Source<T> implements Publisher<T> {
+        private final int mBufferSize;
+        private final List<BufferedSubscription<T>> mSubscriptions = new ArrayList<BufferedSubscription<T>>();
+
+        Source(int bufferSize) {
+            mBufferSize = bufferSize;
+        }
+
+        @Override
+        public void subscribe(Subscriber<? super T> subscriber) {
+            BufferedSubscription<T> subscription = new BufferedSubscription<T>(subscriber, mBufferSize);
+            synchronized (this) {
+                mSubscriptions.add(subscription);
+            }
+            subscriber.onSubscribe(subscription);
+        }
+
+        /**
+         * @return true if anyone is subscribed, so items need to be built at all
+         */
+        synchronized boolean hasSubscribers() {
+            return !mSubscriptions.isEmpty();
+        }
+
+        /**
+         * @param item item to deliver to every subscriber
+         */
+        void emit(T item) {
+            for (BufferedSubscription<T> subscription : subscriptions()) {
+                if (subscription.isCancelled()) {
+                    synchronized (this) {
+                        mSubscriptions.remove(subscription);
+                    }
+                } else {
+                    subscription.offer(item);
+                }
+            }
+        }
+
+        /**
+         * Ends the stream, subscribers are completed once they have taken their buffered items.
+         */
+        void complete() {
+            for (BufferedSubscription<T> subscription : subscriptions()) {
+                subscription.complete();
+            }
+            synchronized (this) {
+                mSubscriptions.clear();
+            }
+        }
+
+        private synchronized List<BufferedSubscription<T>> subscriptions() {
+            return new ArrayList<BufferedSubscription<T>>(mSubscriptions);
+        }
+    }
+
+    /**
+     * Delivers to one subscriber within its demand, holding at most capacity undelivered items.
+     */
+    static class BufferedSubscription<T> implements Subscription {
+        private final Subscriber<? super T> mSubscriber;
+        private final int mCapacity;
+
+        // guarded by this
+        private final Queue<T> mQueue = new ArrayDeque<T>();
+        private long mRequested;
+        private boolean mCompleted;
+        private Throwable mError;
+        private long mDroppedCount;
+
+        private volatile boolean mCancelled;
+        private boolean mTerminated;
+        // serializes delivery, whoever raises it from 0 drains for everyone
+        private final AtomicInteger mWorkInProgress = new AtomicInteger();
+
+        BufferedSubscription(Subscriber<? super T> subscriber, int capacity) {
+            mSubscriber = subscriber;
+            mCapacity = capacity;
+        }
+
+        void offer(T item) {
+            synchronized (this) {
+                if (mCancelled || mCompleted) {
+                    return;
+                }
+                mQueue.add(item);
+                if (mQueue.size() > mCapacity) {
+                    mQueue.remove();
+                    mDroppedCount++;
+                }
+            }
+            drain();
+        }
+
+        void complete() {
+            synchronized (this) {
+                mCompleted = true;
+            }
+            drain();
+        }
+
+        void fail(Throwable error) {
+            synchronized (this) {
+                mError = error;
+                mQueue.clear();
+            }
+            drain();
+        }
+
+        boolean isCancelled() {
+            return mCancelled;
+        }
+
+        synchronized long getDroppedCount() {
+            return mDroppedCount;
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                fail(new IllegalArgumentException("request must be positive, was " + n));
+                return;
+            }
+            synchronized (this) {
+                mRequested = mRequested + n < 0 ? Long.MAX_VALUE : mRequested + n;
+            }
+            drain();
+        }
+
+        @Override
+        public void cancel() {
+            mCancelled = true;
+            synchronized (this) {
+                mQueue.clear();
+            }
+        }
+
+        private void drain() {
+            if (mWorkInProgress.getAndIncrement() != 0) {
+                return;
+            }
+            do {
+                while (!mTerminated && !mCancelled) {
+                    T item;
+                    Throwable error;
+                    boolean completed;
+                    synchronized (this) {
+                        error = mError;
+                        completed = mCompleted && mQueue.isEmpty();
+                        item = error == null && mRequested > 0 ? mQueue.poll() : null;
+                        if (item != null && mRequested != Long.MAX_VALUE) {
+                            mRequested--;
+                        }
+                    }
+                    if (error != null) {
+                        mTerminated = true;
+                        mSubscriber.onError(error);
+                    } else if (item != null) {
+                        mSubscriber.onNext(item);
+                    } else if (completed) {
+                        mTerminated = true;
+                        mSubscriber.onComplete();
+                    } else {
+                        break;
+                    }
+                }
+            } while (mWorkInProgress.decrementAndGet() != 0);
+        }
+    }
+
+    /**
+     * Subscribes upstream without limit and transforms items into a bounded buffer for the downstream
+     * subscriber, so the operator's memory is bounded whatever the downstream demand.
+     */
+    private abstract static class Operator<T, R> implements Subscriber<T> {
+        private final BufferedSubscription<R> mDownstream;
+        private final Subscriber<? super R> mSubscriber;
+        private Subscription mUpstream;
+
+        Operator(Subscriber<? super R> subscriber, int capacity) {
+            mSubscriber = subscriber;
+            mDownstream = new BufferedSubscription<R>(subscriber, capacity) {
+                @Override
+                public void cancel() {
+                    super.cancel();
+                    mUpstream.cancel();
+                }
+            };
+        }
+
+        abstract void onItem(T item);
+
+        void onEnd() {
+        }
+
+        void emit(R item) {
+            mDownstream.offer(item);
+        }
+
+        @Override
+        public void onSubscribe(Subscription subscription) {
+            mUpstream = subscription;
+            mSubscriber.onSubscribe(mDownstream);
+            subscription.request(Long.MAX_VALUE);
+        }
+
+        @Override
+        public void onNext(T item) {
+            onItem(item);
+        }
+
+        @Override
+        public void onError(Throwable error) {
+            mDownstream.fail(error);
+        }
+
+        @Override
+        public void onComplete() {
+            onEnd();
+            mDownstream.complete();
+        }
+    }
+
+    /**
+     * Collects items into the current list, which is delivered by flush, by the timer once the list
+     * has been open long enough, or when the stream ends.  The timer and the upstream call in on
+     * different threads, so the list is only touched while holding the operator's lock.
+     */
+    private abstract static class TimedOperator<T> extends Operator<T, List<T>> {
+        private final ScheduledExecutorService mTimer;
+        List<T> mCurrent = new ArrayList<T>();
+        private ScheduledFuture<?> mPendingFlush;
+
+        TimedOperator(Subscriber<? super List<T>> subscriber, ScheduledExecutorService timer) {
+            super(subscriber, DEFAULT_BUFFER_SIZE);
+            mTimer = timer;
+        }
+
+        // a new list was started, deliver it after timespan ms unless it is delivered before
+        void open(long timespan) {
+            if (mTimer == null) {
+                return;
+            }
+            final List<T> list = mCurrent;
+            mPendingFlush = mTimer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (TimedOperator.this) {
+                        if (mCurrent == list) {
+                            flush();
+                        }
+                    }
+                }
+            }, timespan, TimeUnit.MILLISECONDS);
+        }
+
+        synchronized void flush() {
+            if (mPendingFlush != null) {
+                mPendingFlush.cancel(false);
+                mPendingFlush = null;
+            }
+            if (!mCurrent.isEmpty()) {
+                emit(Collections.unmodifiableList(mCurrent));
+                mCurrent = new ArrayList<T>();
+            }
+        }
+
+        @Override
+        synchronized void onEnd() {
+            flush();
+        }
+    }
+}
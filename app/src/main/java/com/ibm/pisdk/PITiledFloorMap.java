@@ -0,0 +1,233 @@
+/**
+ * Copyright (c) 2015 IBM Corporation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+package com.ibm.pisdk;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Rect;
+import android.util.LruCache;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This class provides a floor map as a pyramid of tiles, for floor plans too large to be held or
+ * drawn as a single Bitmap.
+ *
+ * Level 0 is the map at full resolution, and every level above it halves the resolution, up to the
+ * level where the whole map fits in one tile.  Tiles are decoded on demand from the map cached on disk
+ * and kept in a bounded LRU, so memory use depends on the size of the viewport rather than the size of
+ * the floor.  Tile decoding does disk I/O, call {@link #getTiles(Rect, float) getTiles} and
+ * {@link #getTile(int, int, int) getTile} off the main thread.
+ *
+ * Retrieve with {@link PIAPIAdapter#getTiledFloorMap(String, String, PIAPICompletionHandler) getTiledFloorMap}.
+ *
+ * @author Ciaran Hannigan (cehannig@us.ibm.com)
+ */
+public class PITiledFloorMap {
+
+    /**
+     * Edge length of a tile in pixels.
+     */
+    public static final int TILE_SIZE = 256;
+
+    /**
+     * A decoded tile of the map.
+     */
+    public static class Tile {
+        private final int level;
+        private final int column;
+        private final int row;
+        private final Rect bounds;
+        private final Bitmap bitmap;
+
+        Tile(int level, int column, int row, Rect bounds, Bitmap bitmap) {
+            this.level = level;
+            this.column = column;
+            this.row = row;
+            this.bounds = bounds;
+            this.bitmap = bitmap;
+        }
+
+        public int getLevel() {
+            return level;
+        }
+
+        public int getColumn() {
+            return column;
+        }
+
+        public int getRow() {
+            return row;
+        }
+
+        /**
+         * @return area of the full resolution map covered by the tile
+         */
+        public Rect getBounds() {
+            return bounds;
+        }
+
+        /**
+         * @return the tile, at most TILE_SIZE by TILE_SIZE
+         */
+        public Bitmap getBitmap() {
+            return bitmap;
+        }
+    }
+
+    private final BitmapRegionDecoder mDecoder;
+    private final int mWidth;
+    private final int mHeight;
+    private final int mMaxLevel;
+    private final LruCache<String, Tile> mTileCache;
+
+    PITiledFloorMap(File source, int maxTileCacheSize) throws IOException {
+        mDecoder = BitmapRegionDecoder.newInstance(source.getPath(), false);
+        if (mDecoder == null) {
+            throw new IOException("could not decode floor map");
+        }
+        mWidth = mDecoder.getWidth();
+        mHeight = mDecoder.getHeight();
+
+        int maxLevel = 0;
+        while ((Math.max(mWidth, mHeight) >> maxLevel) > TILE_SIZE) {
+            maxLevel++;
+        }
+        mMaxLevel = maxLevel;
+
+        mTileCache = new LruCache<String, Tile>(maxTileCacheSize) {
+            @Override
+            protected int sizeOf(String key, Tile tile) {
+                return tile.getBitmap().getByteCount();
+            }
+        };
+    }
+
+    /**
+     * @return width of the full resolution map in pixels
+     */
+    public int getWidth() {
+        return mWidth;
+    }
+
+    /**
+     * @return height of the full resolution map in pixels
+     */
+    public int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * @return the coarsest level, where the whole map fits in one tile
+     */
+    public int getMaxLevel() {
+        return mMaxLevel;
+    }
+
+    /**
+     * Picks the level whose resolution is closest to, but not less than, the displayed resolution.
+     *
+     * @param scale displayed size divided by full resolution size, e.g. 0.25 when zoomed out 4x
+     * @return pyramid level
+     */
+    public int getLevelForScale(float scale) {
+        int level = 0;
+        while (level < mMaxLevel && scale <= 1f / (1 << (level + 1))) {
+            level++;
+        }
+        return level;
+    }
+
+    /**
+     * Returns the tiles covering a viewport at the level matching the zoom.
+     *
+     * @param viewport visible area in full resolution map coordinates
+     * @param scale displayed size divided by full resolution size
+     * @return tiles covering the viewport, in row major order
+     */
+    public List<Tile> getTiles(Rect viewport, float scale) {
+        int level = getLevelForScale(scale);
+        int span = TILE_SIZE << level;
+        int firstColumn = Math.max(viewport.left, 0) / span;
+        int firstRow = Math.max(viewport.top, 0) / span;
+        int lastColumn = (Math.min(viewport.right, mWidth) - 1) / span;
+        int lastRow = (Math.min(viewport.bottom, mHeight) - 1) / span;
+
+        List<Tile> tiles = new ArrayList<Tile>();
+        for (int row = firstRow; row <= lastRow; row++) {
+            for (int column = firstColumn; column <= lastColumn; column++) {
+                Tile tile = getTile(level, column, row);
+                if (tile != null) {
+                    tiles.add(tile);
+                }
+            }
+        }
+        return tiles;
+    }
+
+    /**
+     * Returns a single tile, decoding it if it is not cached.
+     *
+     * @param level pyramid level
+     * @param column tile column at that level
+     * @param row tile row at that level
+     * @return the tile, or null if it is outside the map or could not be decoded
+     */
+    public Tile getTile(int level, int column, int row) {
+        String key = level + "/" + column + "/" + row;
+        Tile tile = mTileCache.get(key);
+        if (tile != null) {
+            return tile;
+        }
+
+        int span = TILE_SIZE << level;
+        Rect bounds = new Rect(column * span, row * span,
+                Math.min((column + 1) * span, mWidth), Math.min((row + 1) * span, mHeight));
+        if (level < 0 || level > mMaxLevel || bounds.left >= mWidth || bounds.top >= mHeight || column < 0 || row < 0) {
+            return null;
+        }
+
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = 1 << level;
+        Bitmap bitmap = mDecoder.decodeRegion(bounds, options);
+        if (bitmap == null) {
+            return null;
+        }
+        tile = new Tile(level, column, row, bounds, bitmap);
+        mTileCache.put(key, tile);
+        return tile;
+    }
+
+    /**
+     * Drops every decoded tile, e.g. from ComponentCallbacks2#onTrimMemory.
+     */
+    public void trimMemory() {
+        mTileCache.evictAll();
+    }
+
+    /**
+     * Releases the decoder and the decoded tiles.  The map can't be used afterwards.
+     */
+    public void close() {
+        mTileCache.evictAll();
+        mDecoder.recycle();
+    }
+}
@@ -0,0 +1,64 @@
+/**
+ * Copyright (c) 2015 IBM Corporation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+package com.ibm.pisdk;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.Map;
+
+/**
+ * This interface performs the HTTP exchanges for the PIAPIAdapter.  Implementations are called from
+ * the adapter's worker threads and must be safe to call concurrently.
+ *
+ * The default implementation is {@link PIHttpTransport PIHttpTransport}.  Provide your own with
+ * {@link PIAPIAdapter#setTransport(PITransport) setTransport} to use a different HTTP stack.
+ *
+ * @author Ciaran Hannigan (cehannig@us.ibm.com)
+ */
+public interface PITransport {
+
+    /**
+     * This interface converts a successful response body into the payload of a PIAPIResult.
+     */
+    interface ResponseReader {
+        /**
+         * Reads the response body.  The transport takes care of draining and closing the stream.
+         *
+         * @param in response body
+         * @return the payload for {@link PIAPIResult#getResult() getResult}
+         * @throws IOException if the body could not be read
+         */
+        Object read(InputStream in) throws IOException;
+    }
+
+    /**
+     * Performs a single HTTP request.
+     *
+     * A response code of 0 in the returned result means the server could not be reached, or its
+     * response could not be read; the exception of the result says why.  Bodies of 2xx responses are
+     * handed to the reader, any other body is returned as a String.
+     *
+     * @param method HTTP method
+     * @param url request url
+     * @param headers request headers
+     * @param body request body, or null if the request has none
+     * @param reader reader for a successful response body
+     * @return result of the request, never null
+     */
+    PIAPIResult execute(String method, URL url, Map<String, String> headers, byte[] body, ResponseReader reader);
+}
@@ -0,0 +1,423 @@
+/**
+ * Copyright (c) 2015 IBM Corporation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+package com.ibm.pisdk;
+
+import android.content.Context;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.URLEncoder;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * This class persists venue configuration (org, sites, floors, zones, beacons, sensors and proximity
+ * UUIDs) on disk, keyed by tenant, org, site and floor.
+ *
+ * Once a venue cache is set on the PIAPIAdapter, reads are answered from disk right away.  Entries
+ * older than the time to live are still served, and a refresh from the server runs in the background
+ * (stale-while-revalidate), so a cold start with no network doesn't wait on connection timeouts.
+ * The ETag and Last-Modified validators of an entry are kept next to it, so a refresh after a
+ * restart is still a conditional GET.  When the cache grows past its maximum size the least recently
+ * written entries are evicted.
+ *
+ * @author Ciaran Hannigan (cehannig@us.ibm.com)
+ */
+public class PIVenueCache {
+    private static final String TAG = PIVenueCache.class.getSimpleName();
+
+    private static final String CACHE_DIRECTORY = "pisdk-venue";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final String VALIDATORS_SUFFIX = ".validators";
+    private static final int BUFFER_SIZE = 4096;
+
+    private final File mDirectory;
+    private final long mTimeToLive;
+    private final long mMaxSize;
+
+    /**
+     * Constructor
+     *
+     * @param context Activity context
+     * @param timeToLive time in ms an entry is served without refreshing it from the server
+     * @param maxSize maximum size of the cache on disk in bytes
+     */
+    public PIVenueCache(Context context, long timeToLive, long maxSize) {
+        mDirectory = new File(context.getApplicationContext().getCacheDir(), CACHE_DIRECTORY);
+        mTimeToLive = timeToLive;
+        mMaxSize = maxSize;
+    }
+
+    /**
+     * Deletes every cached entry.
+     */
+    public synchronized void clear() {
+        File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * Builds the cache key of a venue document.
+     *
+     * @param tenantCode unique identifier for the tenant
+     * @param orgCode unique identifier for the organization
+     * @param siteCode unique identifier for the site, or null
+     * @param floorCode unique identifier for the floor, or null
+     * @param document kind of document, e.g. "zones"
+     * @return cache key
+     */
+    static String key(String tenantCode, String orgCode, String siteCode, String floorCode, String document) {
+        return String.format("%s/%s/%s/%s/%s", tenantCode, orgCode, siteCode, floorCode, document);
+    }
+
+    /**
+     * Reads a cached entry with the same reader that would have parsed the server response.
+     *
+     * @param key cache key
+     * @param reader response reader
+     * @return result holding the parsed entry, or null if nothing usable is cached
+     */
+    PIAPIResult read(String key, PITransport.ResponseReader reader) {
+        File file = getFile(key);
+        if (!file.exists()) {
+            return null;
+        }
+        InputStream in = null;
+        try {
+            in = new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE);
+            return new PIAPIResult(reader.read(in), HttpURLConnection.HTTP_OK);
+        } catch (Exception e) {
+            // unreadable or truncated, drop it and go to the server
+            PILogger.e(TAG, "discarding cached " + key + ": " + e.getMessage());
+            delete(file);
+            return null;
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    /**
+     * @param key cache key
+     * @return true if the entry is older than the time to live
+     */
+    boolean isStale(String key) {
+        return System.currentTimeMillis() - getFile(key).lastModified() > mTimeToLive;
+    }
+
+    /**
+     * Refreshes of an entry go through the memory response cache first, then fall back to the
+     * validators and content kept on disk.  A 304 touches the entry so it is fresh again.
+     *
+     * @param key cache key
+     * @param responseCache memory response cache
+     * @param reader response reader, used to read the entry back on a 304
+     * @return conditional cache for the PIAPIAdapter's request
+     */
+    PIConditionalCache conditional(final String key, final PIResponseCache responseCache,
+                                            final PITransport.ResponseReader reader) {
+        return new PIConditionalCache() {
+            @Override
+            public Map<String, String> addValidators(String url, Map<String, String> headers) {
+                Map<String, String> conditionalHeaders = responseCache.addValidators(url, headers);
+                if (conditionalHeaders != headers) {
+                    return conditionalHeaders;
+                }
+                String[] validators = readValidators(key);
+                if (validators == null) {
+                    return headers;
+                }
+                conditionalHeaders = new HashMap<String, String>(headers);
+                if (validators[0] != null) {
+                    conditionalHeaders.put(PIResponseCache.HEADER_IF_NONE_MATCH, validators[0]);
+                }
+                if (validators[1] != null) {
+                    conditionalHeaders.put(PIResponseCache.HEADER_IF_MODIFIED_SINCE, validators[1]);
+                }
+                return conditionalHeaders;
+            }
+
+            @Override
+            public void onResponse(String url, PIAPIResult result) {
+                int responseCode = result.getResponseCode();
+                responseCache.onResponse(url, result);
+                if (responseCode == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                    if (result.getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                        // nothing in memory, e.g. after a restart
+                        PIAPIResult cached = read(key, reader);
+                        if (cached != null) {
+                            result.setResult(cached.getResult());
+                            result.setResponseCode(HttpURLConnection.HTTP_OK);
+                        }
+                    }
+                    touch(key);
+                } else if (responseCode == HttpURLConnection.HTTP_OK && result.getException() == null) {
+                    // the entry itself was written while the response was read
+                    writeValidators(key, result.getHeaderField(PIResponseCache.HEADER_ETAG),
+                            result.getHeaderField(PIResponseCache.HEADER_LAST_MODIFIED));
+                }
+            }
+        };
+    }
+
+    // marks an entry as fresh, the server confirmed it has not changed
+    private void touch(String key) {
+        File file = getFile(key);
+        if (file.exists()) {
+            file.setLastModified(System.currentTimeMillis());
+        }
+    }
+
+    // ETag and Last-Modified of an entry, either may be null, or null if there is no entry
+    private String[] readValidators(String key) {
+        File entry = getFile(key);
+        if (!entry.exists()) {
+            return null;
+        }
+        File file = getValidatorsFile(entry);
+        if (!file.exists()) {
+            return null;
+        }
+        BufferedReader in = null;
+        try {
+            in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+            String etag = in.readLine();
+            String lastModified = in.readLine();
+            return new String[] { emptyToNull(etag), emptyToNull(lastModified) };
+        } catch (IOException e) {
+            PILogger.e(TAG, "discarding validators of " + key + ": " + e.getMessage());
+            file.delete();
+            return null;
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    private synchronized void writeValidators(String key, String etag, String lastModified) {
+        File file = getValidatorsFile(getFile(key));
+        if (etag == null && lastModified == null) {
+            file.delete();
+            return;
+        }
+        Writer out = null;
+        File temp = null;
+        try {
+            temp = File.createTempFile("validators", TEMP_SUFFIX, mDirectory);
+            out = new OutputStreamWriter(new FileOutputStream(temp), "UTF-8");
+            out.write((etag != null ? etag : "") + "\n" + (lastModified != null ? lastModified : "") + "\n");
+            out.close();
+            out = null;
+            if (!temp.renameTo(file)) {
+                temp.delete();
+            }
+        } catch (IOException e) {
+            PILogger.e(TAG, "could not save validators of " + key + ": " + e.getMessage());
+            if (temp != null) {
+                temp.delete();
+            }
+        } finally {
+            closeQuietly(out);
+        }
+    }
+
+    /**
+     * Wraps a response reader so that the raw response is written to the cache while it is parsed.
+     * The entry is only replaced once the whole response was parsed successfully.
+     *
+     * @param key cache key
+     * @param reader response reader
+     * @return response reader writing through to the cache
+     */
+    PITransport.ResponseReader writeThrough(final String key, final PITransport.ResponseReader reader) {
+        return new PITransport.ResponseReader() {
+            @Override
+            public Object read(InputStream in) throws IOException {
+                if (!mDirectory.exists() && !mDirectory.mkdirs()) {
+                    return reader.read(in);
+                }
+                File temp = File.createTempFile("entry", TEMP_SUFFIX, mDirectory);
+                final OutputStream out = new FileOutputStream(temp);
+                boolean complete = false;
+                try {
+                    TeeInputStream tee = new TeeInputStream(in, out);
+                    Object result = reader.read(tee);
+                    tee.drain();
+                    complete = true;
+                    return result;
+                } finally {
+                    closeQuietly(out);
+                    if (complete) {
+                        commit(key, temp);
+                    } else {
+                        temp.delete();
+                    }
+                }
+            }
+        };
+    }
+
+    private synchronized void commit(String key, File temp) {
+        File file = getFile(key);
+        if (!temp.renameTo(file)) {
+            temp.delete();
+            return;
+        }
+        // the old validators don't describe the new content, they are written once the response is done
+        getValidatorsFile(file).delete();
+        trimToSize();
+    }
+
+    // evict the least recently written entries until the cache fits
+    private void trimToSize() {
+        File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return;
+        }
+        long size = 0;
+        for (File file : files) {
+            size += file.length();
+        }
+        if (size <= mMaxSize) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                long l = lhs.lastModified();
+                long r = rhs.lastModified();
+                return l < r ? -1 : (l == r ? 0 : 1);
+            }
+        });
+        for (File file : files) {
+            if (size <= mMaxSize) {
+                break;
+            }
+            // leave in-flight downloads alone, validators go with their entry
+            if (file.getName().endsWith(TEMP_SUFFIX) || file.getName().endsWith(VALIDATORS_SUFFIX)) {
+                continue;
+            }
+            long length = file.length() + getValidatorsFile(file).length();
+            if (delete(file)) {
+                PILogger.d(TAG, "evicted " + file.getName());
+                size -= length;
+            }
+        }
+    }
+
+    private File getFile(String key) {
+        try {
+            return new File(mDirectory, URLEncoder.encode(key, "UTF-8"));
+        } catch (UnsupportedEncodingException e) {
+            // UTF-8 is always supported
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static File getValidatorsFile(File file) {
+        return new File(file.getPath() + VALIDATORS_SUFFIX);
+    }
+
+    private static boolean delete(File file) {
+        getValidatorsFile(file).delete();
+        return file.delete();
+    }
+
+    private static String emptyToNull(String value) {
+        return value == null || value.length() == 0 ? null : value;
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                // nothing to do
+            }
+        }
+    }
+
+    // copies everything read from the response into the cache entry
+    private static class TeeInputStream extends FilterInputStream {
+        private final OutputStream mOut;
+
+        TeeInputStream(InputStream in, OutputStream out) {
+            super(in);
+            mOut = out;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                mOut.write(b);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            int read = super.read(buffer, offset, count);
+            if (read > 0) {
+                mOut.write(buffer, offset, read);
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long count) throws IOException {
+            // skipped bytes still belong in the entry
+            byte[] buffer = new byte[BUFFER_SIZE];
+            long skipped = 0;
+            int read;
+            while (skipped < count && (read = read(buffer, 0, (int) Math.min(buffer.length, count - skipped))) != -1) {
+                skipped += read;
+            }
+            return skipped;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        // the reader may stop before the end of the response, copy the rest
+        void drain() throws IOException {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            while (read(buffer, 0, buffer.length) != -1) {
+                // keep copying
+            }
+        }
+    }
+}
@@ -0,0 +1,107 @@
+/**
+ * Copyright (c) 2015 IBM Corporation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+package com.ibm.pisdk;
+
+import com.ibm.pisdk.doctypes.PIBeacon;
+import com.ibm.pisdk.doctypes.PIFloor;
+import com.ibm.pisdk.doctypes.PISensor;
+import com.ibm.pisdk.doctypes.PIZone;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An immutable view of a whole site: its floors, and the zones, beacons and sensors of each floor.
+ * Returned by {@link PIAPIAdapter#prefetchSite(String, PIAPICompletionHandler) prefetchSite}.
+ *
+ * @author Ciaran Hannigan (cehannig@us.ibm.com)
+ */
+public final class PIVenueSnapshot {
+    private final String mSiteCode;
+    private final List<PIFloor> mFloors;
+    private final Map<String, List<PIZone>> mZones;
+    private final Map<String, List<PIBeacon>> mBeacons;
+    private final Map<String, List<PISensor>> mSensors;
+
+    PIVenueSnapshot(String siteCode, List<PIFloor> floors, Map<String, List<PIZone>> zones,
+                    Map<String, List<PIBeacon>> beacons, Map<String, List<PISensor>> sensors) {
+        mSiteCode = siteCode;
+        mFloors = Collections.unmodifiableList(new ArrayList<PIFloor>(floors));
+        mZones = copyOf(zones);
+        mBeacons = copyOf(beacons);
+        mSensors = copyOf(sensors);
+    }
+
+    /**
+     * @return code of the site
+     */
+    public String getSiteCode() {
+        return mSiteCode;
+    }
+
+    /**
+     * @return all the floors of the site
+     */
+    public List<PIFloor> getFloors() {
+        return mFloors;
+    }
+
+    /**
+     * @param floorCode unique identifier for the floor
+     * @return the zones on the floor, empty if the floor is not part of the site
+     */
+    public List<PIZone> getZones(String floorCode) {
+        return get(mZones, floorCode);
+    }
+
+    /**
+     * @param floorCode unique identifier for the floor
+     * @return the beacons on the floor, empty if the floor is not part of the site
+     */
+    public List<PIBeacon> getBeacons(String floorCode) {
+        return get(mBeacons, floorCode);
+    }
+
+    /**
+     * @param floorCode unique identifier for the floor
+     * @return the sensors on the floor, empty if the floor is not part of the site
+     */
+    public List<PISensor> getSensors(String floorCode) {
+        return get(mSensors, floorCode);
+    }
+
+    private static <T> Map<String, List<T>> copyOf(Map<String, List<T>> byFloor) {
+        Map<String, List<T>> copy = new HashMap<String, List<T>>();
+        for (Map.Entry<String, List<T>> entry : byFloor.entrySet()) {
+            copy.put(entry.getKey(), Collections.unmodifiableList(new ArrayList<T>(entry.getValue())));
+        }
+        return Collections.unmodifiableMap(copy);
+    }
+
+    private static <T> List<T> get(Map<String, List<T>> byFloor, String floorCode) {
+        List<T> list = byFloor.get(floorCode);
+        return list != null ? list : Collections.<T>emptyList();
+    }
+
+    @Override
+    public String toString() {
+        return "PIVenueSnapshot{site=" + mSiteCode + ", floors=" + mFloors.size() + "}";
+    }
+}
@@ -24,11 +24,20 @@ import org.altbeacon.beacon.Identifier;
 import org.altbeacon.beacon.Region;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 
 /**
  * This class manages regions for Presence Insights. It keeps track of the number of overall regions monitored.
  * It handles starting and stopping the monitoring of beacon regions and the monitoring and ranging of UUID regions.
  *
+ * An organization can have several proximity UUIDs.  Each is monitored as its own region, but ranging is
+ * done in a single wildcard region while the device is inside any of them, and ranged beacons are
+ * filtered by UUID here.  That way there is one ranging callback per scan cycle however many UUIDs there
+ * are, and a change to the UUID list only starts or stops monitoring of the UUIDs that changed.
+ *
  * Used as a helper class in PIBeaconSensorService.
  *
  * @author Ciaran Hannigan (cehannig@us.ibm.com)
@@ -38,12 +47,25 @@ class RegionManager {
     private final String TAG = RegionManager.class.getSimpleName();
     // handle to the BeaconManager
     private BeaconManager mBeaconManager;
-    // regions used to range for beacons
-    private Region mUuidRegion;
-    // regions used to get enter/exit region events
-    private ArrayList<Region> mBeaconRegions = new ArrayList<Region>();
+    // regions used to know when to range for beacons, keyed by uuid
+    private final HashMap<String, Region> mUuidRegions = new HashMap<String, Region>();
+    // uuids of the regions the device is in
+    private final HashSet<String> mInsideUuids = new HashSet<String>();
+    // region used to range for beacons of every uuid at once
+    private final Region mRangingRegion = new Region("pi-ranging", null, null, null);
+    // regions used to get enter/exit region events, keyed by uuid, major and minor
+    private final HashMap<String, Region> mBeaconRegions = new HashMap<String, Region>();
     // maximum number of regions to monitor at one time
     private final int maxRegions = 19;
+    // decides which beacon regions get the slots
+    private final PIRegionSlotPolicy mSlotPolicy = new PIRegionSlotPolicy();
+    // region churn
+    private long mRegionHits;
+    private long mRegionsAdded;
+    private long mRegionsEvicted;
+    private long mSwapsDeclined;
+    // set when the regions change, so they are only saved when needed
+    private boolean mChanged;
 
     public RegionManager(BeaconManager manager) {
         PILogger.d(TAG, "initializing region manager with maxRegions: " + maxRegions);
@@ -52,16 +74,138 @@ class RegionManager {
 
     public void add(String uuid) {
         PILogger.d(TAG, "adding uuid region: " + uuid);
-        Region uuidRegion = new Region(uuid, Identifier.parse(uuid), null, null);
-        handleAddUuidRegion(uuidRegion);
+        Identifier id = Identifier.parse(uuid);
+        if (!mUuidRegions.containsKey(id.toString())) {
+            handleAddUuidRegion(new Region(uuid, id, null, null));
+        }
+    }
+
+    /**
+     * Monitors the regions of exactly these uuids.  Regions of uuids already monitored are left alone.
+     *
+     * @param uuids the organization's proximity uuids
+     */
+    public void setUuids(Collection<String> uuids) {
+        HashSet<String> keep = new HashSet<String>();
+        for (String uuid : uuids) {
+            keep.add(Identifier.parse(uuid).toString());
+        }
+        for (Region region : new ArrayList<Region>(mUuidRegions.values())) {
+            if (!keep.contains(region.getId1().toString())) {
+                removeUuidRegion(region);
+            }
+        }
+        for (String uuid : uuids) {
+            add(uuid);
+        }
+    }
+
+    /**
+     * Monitors every known region again.  Called each time the beacon service is bound: after an
+     * unbind it has forgotten the regions, and the device is no longer known to be inside any, so
+     * ranging starts again with the first uuid region entered.
+     */
+    public void reconnect() {
+        mInsideUuids.clear();
+        for (Region region : mUuidRegions.values()) {
+            startMonitoring(region);
+        }
+        for (Region region : mBeaconRegions.values()) {
+            startMonitoring(region);
+        }
+    }
+
+    /**
+     * Monitors the regions saved before the service was restarted, without waiting for the server.
+     *
+     * @param uuids proximity uuids
+     * @param beaconRegions beacon regions, only the first maxRegions are monitored
+     */
+    public void restore(Collection<String> uuids, Collection<Region> beaconRegions) {
+        setUuids(uuids);
+        for (Region region : beaconRegions) {
+            if (mBeaconRegions.size() >= maxRegions) {
+                break;
+            }
+            String key = key(region.getId1(), region.getId2(), region.getId3());
+            if (!mBeaconRegions.containsKey(key)) {
+                handleAddBeaconRegion(key, region, null);
+            }
+        }
+        mChanged = false;
     }
 
-    // creates a beacon region based off of beacon object
-    public void add(Beacon beacon) {
+    /**
+     * @return the uuids monitored
+     */
+    public List<String> getUuids() {
+        return new ArrayList<String>(mUuidRegions.keySet());
+    }
+
+    /**
+     * @return keys of the beacon regions monitored, uuid;major;minor
+     */
+    public List<String> getBeaconRegionKeys() {
+        return new ArrayList<String>(mBeaconRegions.keySet());
+    }
+
+    /**
+     * @return true if the regions changed since the last call
+     */
+    boolean takeChanged() {
+        boolean changed = mChanged;
+        mChanged = false;
+        return changed;
+    }
+
+    /**
+     * @param beacons beacons ranged in the wildcard region
+     * @return the beacons with one of the organization's uuids
+     */
+    public List<Beacon> filter(Collection<Beacon> beacons) {
+        List<Beacon> matching = new ArrayList<Beacon>(beacons.size());
+        for (Beacon beacon : beacons) {
+            if (mUuidRegions.containsKey(beacon.getId1().toString())) {
+                matching.add(beacon);
+            }
+        }
+        return matching;
+    }
+
+    /**
+     * Records a sighting of a beacon, and monitors its region if a slot is free or if it scores
+     * sufficiently higher than the lowest monitored region.
+     *
+     * @param beacon beacon ranged
+     * @param distance smoothed distance to the beacon in meters, negative if unknown
+     * @param now time the beacon was ranged in ms
+     */
+    public void add(Beacon beacon, double distance, long now) {
+        String key = key(beacon.getId1(), beacon.getId2(), beacon.getId3());
+        mSlotPolicy.onSeen(key, distance, now);
+        // called for every beacon in every scan cycle, most of the time the region is already monitored
+        if (mBeaconRegions.get(key) != null) {
+            mRegionHits++;
+            return;
+        }
+        String evictKey = null;
+        if (mBeaconRegions.size() >= maxRegions) {
+            double lowestScore = Double.MAX_VALUE;
+            for (String monitored : mBeaconRegions.keySet()) {
+                double score = mSlotPolicy.score(monitored, now);
+                if (score < lowestScore) {
+                    lowestScore = score;
+                    evictKey = monitored;
+                }
+            }
+            if (!mSlotPolicy.shouldReplace(mSlotPolicy.score(key, now), lowestScore)) {
+                mSwapsDeclined++;
+                return;
+            }
+        }
         PILogger.d(TAG, "adding beacon region for beacon: " + beacon.toString());
-        String uniqueId = beacon.getId2().toString() + beacon.getId3().toString();
-        Region beaconRegion = new Region(uniqueId, beacon.getId1(), beacon.getId2(), beacon.getId3());
-        handleAddBeaconRegion(beaconRegion);
+        Region beaconRegion = new Region(key, beacon.getId1(), beacon.getId2(), beacon.getId3());
+        handleAddBeaconRegion(key, beaconRegion, evictKey);
     }
 
     public void remove(Region region) {
@@ -73,7 +217,8 @@ class RegionManager {
             } catch (RemoteException e) {
                 e.printStackTrace();
             }
-            mBeaconRegions.remove(region);
+            mBeaconRegions.remove(key(region.getId1(), region.getId2(), region.getId3()));
+            mChanged = true;
         } else {
             PILogger.e(TAG, "region was not removed. Did not match beacon region.");
         }
@@ -82,82 +227,129 @@ class RegionManager {
     public void removeUuidRegion(Region region) {
         PILogger.d(TAG, "removing region: " + region.toString());
         if (region.getId1() != null && region.getId2() == null && region.getId3() == null) {
+            String uuid = region.getId1().toString();
             try {
-                mBeaconManager.stopMonitoringBeaconsInRegion(region);
-                mBeaconManager.stopRangingBeaconsInRegion(region);
+                mBeaconManager.stopMonitoringBeaconsInRegion(mUuidRegions.remove(uuid));
             } catch (RemoteException e) {
                 e.printStackTrace();
             }
-            mUuidRegion = null;
+            exitUuidRegion(uuid);
+            mChanged = true;
         } else {
             PILogger.e(TAG, "region was not removed. Did not match uuid region.");
         }
     }
 
     public void handleEnterRegion(Region region) {
+        onRegionEvent(region);
         if (isUuidRegion(region)) {
-            try {
-                mBeaconManager.startRangingBeaconsInRegion(region);
-            } catch (RemoteException e) {
-                e.printStackTrace();
+            // start ranging when entering the first uuid region
+            boolean outside = mInsideUuids.isEmpty();
+            if (mInsideUuids.add(region.getId1().toString()) && outside) {
+                try {
+                    mBeaconManager.startRangingBeaconsInRegion(mRangingRegion);
+                } catch (RemoteException e) {
+                    e.printStackTrace();
+                }
             }
         }
     }
 
     public void handleExitRegion(Region region) {
+        onRegionEvent(region);
         if (isUuidRegion(region)) {
-            try {
-                mBeaconManager.stopRangingBeaconsInRegion(region);
-            } catch (RemoteException e) {
-                e.printStackTrace();
-            }
+            exitUuidRegion(region.getId1().toString());
         }
     }
 
-    private void handleAddUuidRegion(Region region) {
-        // if no region set.. start ranging and monitoring
-        if (mUuidRegion == null) {
-            mUuidRegion = region;
-        } else { // else stop ranging and monitoring for previous region and start for new region
+    // stops ranging when leaving the last uuid region
+    private void exitUuidRegion(String uuid) {
+        if (mInsideUuids.remove(uuid) && mInsideUuids.isEmpty()) {
             try {
-                mBeaconManager.stopMonitoringBeaconsInRegion(mUuidRegion);
+                mBeaconManager.stopRangingBeaconsInRegion(mRangingRegion);
             } catch (RemoteException e) {
                 e.printStackTrace();
             }
-            mUuidRegion = region;
         }
-        // after handling assignment start it up!
+    }
+
+    private void handleAddUuidRegion(Region region) {
+        mUuidRegions.put(region.getId1().toString(), region);
+        mChanged = true;
+        startMonitoring(region);
+    }
+
+    private void startMonitoring(Region region) {
         try {
-            mBeaconManager.startMonitoringBeaconsInRegion(mUuidRegion);
+            mBeaconManager.startMonitoringBeaconsInRegion(region);
         } catch (RemoteException e) {
             e.printStackTrace();
         }
     }
 
-    private void handleAddBeaconRegion(Region region) {
-        // check to see if beacon region exists in list already
-        if (mBeaconRegions.contains(region)) {
-            mBeaconRegions.remove(region);
-            mBeaconRegions.add(region);
-        } else if (mBeaconRegions.size() == maxRegions) {
-            // stop monitoring and remove last object
-            Region removeRegion = mBeaconRegions.get(mBeaconRegions.size() - 1);
-            mBeaconRegions.remove(removeRegion);
-            mBeaconRegions.add(region);
+    private void onRegionEvent(Region region) {
+        if (!isUuidRegion(region)) {
+            mSlotPolicy.onRegionEvent(key(region.getId1(), region.getId2(), region.getId3()));
+        }
+    }
+
+    private void handleAddBeaconRegion(String key, Region region, String evictKey) {
+        if (evictKey != null) {
+            // stop monitoring the lowest scoring region
+            Region removeRegion = mBeaconRegions.remove(evictKey);
+            mRegionsEvicted++;
+            PILogger.d(TAG, "evicting region: " + removeRegion + ", " + getChurnStats());
             try {
                 mBeaconManager.stopMonitoringBeaconsInRegion(removeRegion);
-                mBeaconManager.startMonitoringBeaconsInRegion(region);
-            } catch (RemoteException e) {
-                e.printStackTrace();
-            }
-        } else {
-            mBeaconRegions.add(region);
-            try {
-                mBeaconManager.startMonitoringBeaconsInRegion(region);
             } catch (RemoteException e) {
                 e.printStackTrace();
             }
         }
+        mBeaconRegions.put(key, region);
+        mRegionsAdded++;
+        mChanged = true;
+        startMonitoring(region);
+    }
+
+    /**
+     * @return number of times a ranged beacon's region was already monitored
+     */
+    long getRegionHits() {
+        return mRegionHits;
+    }
+
+    /**
+     * @return number of beacon regions monitoring was started for
+     */
+    long getRegionsAdded() {
+        return mRegionsAdded;
+    }
+
+    /**
+     * @return number of beacon regions evicted to make room for another
+     */
+    long getRegionsEvicted() {
+        return mRegionsEvicted;
+    }
+
+    /**
+     * @return number of times a beacon's region was left unmonitored because it didn't score high enough
+     */
+    long getSwapsDeclined() {
+        return mSwapsDeclined;
+    }
+
+    /**
+     * @return summary of region churn, for logging
+     */
+    String getChurnStats() {
+        return "regions monitored: " + mBeaconRegions.size() + ", hits: " + mRegionHits
+                + ", added: " + mRegionsAdded + ", evicted: " + mRegionsEvicted + ", declined: " + mSwapsDeclined;
+    }
+
+    // the region's unique id, also distinguishes major 1 minor 23 from major 12 minor 3
+    private static String key(Identifier uuid, Identifier major, Identifier minor) {
+        return uuid + ";" + major + ";" + minor;
     }
 
     private boolean isUuidRegion(Region region) {
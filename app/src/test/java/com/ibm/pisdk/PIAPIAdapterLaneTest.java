@@ -0,0 +1,167 @@
+/**
+ * Copyright (c) 2015 IBM Corporation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+package com.ibm.pisdk;
+
+import com.ibm.json.java.JSONObject;
+
+import org.junit.Test;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks how the adapter dispatches requests to its lanes: callers never wait on the network, uploads
+ * don't queue behind management requests, and a lane runs its requests in the order they were made.
+ * The transport is a stand-in that holds management requests until the test releases them.
+ *
+ * @author Ciaran Hannigan (cehannig@us.ibm.com)
+ */
+public class PIAPIAdapterLaneTest {
+    private static final long TIMEOUT = 10; /* seconds */
+
+    /**
+     * Holds every GET until released, answers everything else right away.
+     */
+    private static class HoldingTransport implements PITransport {
+        final CountDownLatch mRelease = new CountDownLatch(1);
+        final List<String> mGets = new ArrayList<String>();
+        final List<String> mPosts = new ArrayList<String>();
+        volatile CountDownLatch mGetsStarted = new CountDownLatch(0);
+        volatile CountDownLatch mPostsDone = new CountDownLatch(0);
+        volatile CountDownLatch mGetsDone = new CountDownLatch(0);
+
+        @Override
+        public PIAPIResult execute(String method, URL url, Map<String, String> headers, byte[] body, ResponseReader reader) {
+            if (method.equals("GET")) {
+                synchronized (this) {
+                    mGets.add(url.getPath());
+                }
+                mGetsStarted.countDown();
+                try {
+                    mRelease.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                mGetsDone.countDown();
+            } else {
+                synchronized (this) {
+                    mPosts.add(url.getPath());
+                }
+                mPostsDone.countDown();
+            }
+            PIAPIResult result = new PIAPIResult();
+            result.setResponseCode(200);
+            return result;
+        }
+
+        synchronized int getCount() {
+            return mGets.size();
+        }
+    }
+
+    private static final PIAPICompletionHandler IGNORE = new PIAPICompletionHandler() {
+        @Override
+        public void onComplete(PIAPIResult result) {
+        }
+    };
+
+    private static PIAPIAdapter adapter(PITransport transport) {
+        PIAPIAdapter adapter = new PIAPIAdapter(null, "user", "password", "http://127.0.0.1", "tenant", "org");
+        adapter.setTransport(transport);
+        return adapter;
+    }
+
+    @Test(timeout = 30000)
+    public void uploadsDontQueueBehindABusyManagementLane() throws Exception {
+        HoldingTransport transport = new HoldingTransport();
+        PIAPIAdapter adapter = adapter(transport);
+        int management = PIAPIAdapter.MANAGEMENT_POOL_SIZE + 2;
+        transport.mGetsStarted = new CountDownLatch(PIAPIAdapter.MANAGEMENT_POOL_SIZE);
+        transport.mGetsDone = new CountDownLatch(management);
+        transport.mPostsDone = new CountDownLatch(3);
+
+        // every management thread ends up waiting on the server, the rest queue; none of it blocks the caller
+        for (int i = 0; i < management; i++) {
+            adapter.getSite("site" + i, IGNORE);
+        }
+        assertTrue(transport.mGetsStarted.await(TIMEOUT, TimeUnit.SECONDS));
+
+        for (int i = 0; i < 3; i++) {
+            adapter.sendBeaconNotificationMessage(new JSONObject(), IGNORE);
+        }
+        assertTrue("uploads waited on the management lane", transport.mPostsDone.await(TIMEOUT, TimeUnit.SECONDS));
+        assertEquals(PIAPIAdapter.MANAGEMENT_POOL_SIZE, transport.getCount());
+
+        transport.mRelease.countDown();
+        assertTrue(transport.mGetsDone.await(TIMEOUT, TimeUnit.SECONDS));
+        assertEquals(management, transport.getCount());
+    }
+
+    @Test(timeout = 30000)
+    public void aLaneRunsRequestsInTheOrderTheyWereMade() throws Exception {
+        HoldingTransport transport = new HoldingTransport();
+        transport.mRelease.countDown();
+        transport.mGetsDone = new CountDownLatch(10);
+        PIAPIAdapter adapter = adapter(transport);
+        adapter.setManagementExecutor(Executors.newSingleThreadExecutor());
+
+        for (int i = 0; i < 10; i++) {
+            adapter.getSite("site" + i, IGNORE);
+        }
+        assertTrue(transport.mGetsDone.await(TIMEOUT, TimeUnit.SECONDS));
+        synchronized (transport) {
+            assertEquals(10, transport.mGets.size());
+            for (int i = 0; i < 10; i++) {
+                assertTrue(transport.mGets.get(i), transport.mGets.get(i).endsWith("/sites/site" + i));
+            }
+        }
+    }
+
+    @Test(timeout = 30000)
+    public void aFullLaneFailsTheRequestInsteadOfBlocking() throws Exception {
+        HoldingTransport transport = new HoldingTransport();
+        PIAPIAdapter adapter = adapter(transport);
+        adapter.setConnectorExecutor(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                throw new RejectedExecutionException("full");
+            }
+        });
+        final List<PIAPIResult> results = new ArrayList<PIAPIResult>();
+        adapter.sendBeaconNotificationMessage(new JSONObject(), new PIAPICompletionHandler() {
+            @Override
+            public void onComplete(PIAPIResult result) {
+                results.add(result);
+            }
+        });
+
+        assertEquals(1, results.size());
+        assertEquals(0, results.get(0).getResponseCode());
+        assertTrue(results.get(0).getException() instanceof RejectedExecutionException);
+        assertTrue(transport.mPosts.isEmpty());
+    }
+}
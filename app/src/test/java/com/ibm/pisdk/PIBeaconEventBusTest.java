@@ -0,0 +1,241 @@
+/**
+ * Copyright (c) 2015 IBM Corporation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+package com.ibm.pisdk;
+
+import org.altbeacon.beacon.Beacon;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks what beacon listeners are handed by PIBeaconEventBus.
+ *
+ * @author Ciaran Hannigan (cehannig@us.ibm.com)
+ */
+public class PIBeaconEventBusTest {
+    private static final String UUID = "a495de49-5b3f-4e3e-8c4d-2b8e9f0b1c2d";
+
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    @Test
+    public void legacyListenersGetTheirOwnModifiableList() {
+        PIBeaconEventBus bus = new PIBeaconEventBus();
+        final List<ArrayList<Beacon>> received = new ArrayList<ArrayList<Beacon>>();
+        PIBeaconSensor.BeaconsInRangeListener sorting = new PIBeaconSensor.BeaconsInRangeListener() {
+            @Override
+            public void beaconsInRange(ArrayList<Beacon> beacons) {
+                Collections.sort(beacons, new Comparator<Beacon>() {
+                    @Override
+                    public int compare(Beacon lhs, Beacon rhs) {
+                        return rhs.getId3().toInt() - lhs.getId3().toInt();
+                    }
+                });
+                beacons.remove(0);
+                received.add(beacons);
+            }
+        };
+        PIBeaconSensor.BeaconsInRangeListener keeping = new PIBeaconSensor.BeaconsInRangeListener() {
+            @Override
+            public void beaconsInRange(ArrayList<Beacon> beacons) {
+                received.add(beacons);
+            }
+        };
+        bus.register(sorting, null, 0, DIRECT);
+        bus.register(keeping, null, 0, DIRECT);
+
+        bus.postBeaconsInRange(beacons(1, 2, 3), null, 1000);
+
+        assertEquals(2, received.size());
+        assertEquals(2, received.get(0).size());
+        assertEquals(2, received.get(0).get(0).getId3().toInt());
+        // the other listener did not see the first one's edits
+        assertEquals(3, received.get(1).size());
+        assertEquals(1, received.get(1).get(0).getId3().toInt());
+    }
+
+    @Test
+    public void snapshotListenersShareOneReadOnlySnapshot() {
+        PIBeaconEventBus bus = new PIBeaconEventBus();
+        final List<PIBeaconSnapshot> received = new ArrayList<PIBeaconSnapshot>();
+        PIBeaconSensor.BeaconSnapshotListener listener = new PIBeaconSensor.BeaconSnapshotListener() {
+            @Override
+            public void beaconsInRange(PIBeaconSnapshot snapshot) {
+                received.add(snapshot);
+            }
+        };
+        bus.register(listener, null, 0, DIRECT);
+        bus.register(new PIBeaconSensor.BeaconSnapshotListener() {
+            @Override
+            public void beaconsInRange(PIBeaconSnapshot snapshot) {
+                received.add(snapshot);
+            }
+        }, null, 0, DIRECT);
+
+        bus.postBeaconsInRange(beacons(1, 2), null, 1000);
+
+        assertEquals(2, received.size());
+        assertSame(received.get(0), received.get(1));
+        PIBeaconSnapshot snapshot = received.get(0);
+        assertEquals(1000, snapshot.getTimestamp());
+        try {
+            Iterator<Beacon> iterator = snapshot.iterator();
+            iterator.next();
+            iterator.remove();
+            fail("removed through the iterator");
+        } catch (UnsupportedOperationException expected) {
+        }
+        try {
+            snapshot.subList(0, 1).clear();
+            fail("cleared a sub list");
+        } catch (UnsupportedOperationException expected) {
+        }
+        assertEquals(2, snapshot.size());
+
+        bus.unregister(listener);
+        bus.postBeaconsInRange(beacons(1), null, 2000);
+        assertEquals(3, received.size());
+        assertNotSame(snapshot, received.get(2));
+    }
+
+    @Test
+    public void filteredListenerIsToldOnceWhenItsBeaconsLeave() {
+        PIBeaconEventBus bus = new PIBeaconEventBus();
+        final List<PIBeaconSnapshot> received = new ArrayList<PIBeaconSnapshot>();
+        PIBeaconCriteria criteria = new PIBeaconCriteria();
+        criteria.setMinor(1);
+        bus.register(new PIBeaconSensor.BeaconSnapshotListener() {
+            @Override
+            public void beaconsInRange(PIBeaconSnapshot snapshot) {
+                received.add(snapshot);
+            }
+        }, criteria, 0, DIRECT);
+
+        post(bus, 1000, 2);
+        assertEquals(0, received.size());
+        post(bus, 2000, 1, 2);
+        assertEquals(1, received.size());
+        post(bus, 3000, 2);
+        post(bus, 4000, 2);
+        post(bus, 5000);
+        assertEquals(2, received.size());
+        assertTrue(received.get(1).isEmpty());
+    }
+
+    @Test
+    public void throttledDeliveryIsDeferredWithTheLatestBeacons() throws Exception {
+        PIBeaconEventBus bus = new PIBeaconEventBus();
+        final List<PIBeaconSnapshot> received = new ArrayList<PIBeaconSnapshot>();
+        final CountDownLatch delivered = new CountDownLatch(2);
+        bus.register(new PIBeaconSensor.BeaconSnapshotListener() {
+            @Override
+            public void beaconsInRange(PIBeaconSnapshot snapshot) {
+                synchronized (received) {
+                    received.add(snapshot);
+                }
+                delivered.countDown();
+            }
+        }, null, 200, DIRECT);
+
+        long now = System.currentTimeMillis();
+        post(bus, now, 1);
+        post(bus, now + 50, 1, 2);
+        post(bus, now + 100, 1, 2, 3);
+
+        assertTrue("the last state of the burst was dropped", delivered.await(5, TimeUnit.SECONDS));
+        synchronized (received) {
+            assertEquals(2, received.size());
+            assertEquals(3, received.get(1).size());
+        }
+    }
+
+    @Test
+    public void legacyListenerFollowsANewInterval() {
+        PIBeaconEventBus bus = new PIBeaconEventBus();
+        final List<ArrayList<Beacon>> received = new ArrayList<ArrayList<Beacon>>();
+        PIBeaconSensor.BeaconsInRangeListener listener = new PIBeaconSensor.BeaconsInRangeListener() {
+            @Override
+            public void beaconsInRange(ArrayList<Beacon> beacons) {
+                received.add(beacons);
+            }
+        };
+        bus.register(listener, null, 60000, DIRECT);
+        post(bus, 1000, 1);
+        bus.setMinInterval(listener, 1000);
+        post(bus, 2000, 1);
+        assertEquals(2, received.size());
+    }
+
+    @Test
+    public void criteriaChangedAfterRegistrationHaveNoEffect() {
+        PIBeaconEventBus bus = new PIBeaconEventBus();
+        final List<PIBeaconSnapshot> received = new ArrayList<PIBeaconSnapshot>();
+        PIBeaconCriteria criteria = new PIBeaconCriteria();
+        criteria.setMinor(1);
+        bus.register(new PIBeaconSensor.BeaconSnapshotListener() {
+            @Override
+            public void beaconsInRange(PIBeaconSnapshot snapshot) {
+                received.add(snapshot);
+            }
+        }, criteria, 0, DIRECT);
+        criteria.setMinor(2);
+
+        post(bus, 1000, 1, 2);
+        assertEquals(1, received.size());
+        assertEquals(1, received.get(0).get(0).getId3().toInt());
+    }
+
+    private static void post(PIBeaconEventBus bus, long timestamp, int... minors) {
+        List<Beacon> beacons = beacons(minors);
+        List<PIBeaconData> readings = new ArrayList<PIBeaconData>();
+        for (Beacon beacon : beacons) {
+            readings.add(new PIBeaconData(UUID, 1, beacon.getId3().toInt()));
+        }
+        bus.postBeaconsInRange(beacons, readings, timestamp);
+    }
+
+    static List<Beacon> beacons(int... minors) {
+        List<Beacon> beacons = new ArrayList<Beacon>();
+        for (int minor : minors) {
+            beacons.add(new Beacon.Builder()
+                    .setId1(UUID)
+                    .setId2("1")
+                    .setId3(Integer.toString(minor))
+                    .setRssi(-70)
+                    .setTxPower(-59)
+                    .build());
+        }
+        return beacons;
+    }
+}
@@ -0,0 +1,257 @@
+/**
+ * Copyright (c) 2015 IBM Corporation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+package com.ibm.pisdk;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Drives PIStream with a synthetic source: demand, drop-oldest buffering, the operators, and delivery
+ * of partly filled lists by time and on completion.
+ *
+ * @author Ciaran Hannigan (cehannig@us.ibm.com)
+ */
+public class PIStreamTest {
+    private static final long TIMESPAN = 100; /* milliseconds */
+
+    private PIStream.Source<Reading> mSource;
+    private ScheduledExecutorService mTimer;
+
+    @Before
+    public void setUp() {
+        mSource = new PIStream.Source<Reading>(4);
+        mTimer = Executors.newSingleThreadScheduledExecutor();
+    }
+
+    @After
+    public void tearDown() {
+        mTimer.shutdownNow();
+    }
+
+    @Test
+    public void deliversOnlyWhatWasRequested() {
+        RecordingSubscriber<Reading> subscriber = new RecordingSubscriber<Reading>(2);
+        mSource.subscribe(subscriber);
+        emit(0, 1, 2);
+        assertEquals(Arrays.asList(0, 1), values(subscriber.mItems));
+
+        subscriber.mSubscription.request(1);
+        assertEquals(Arrays.asList(0, 1, 2), values(subscriber.mItems));
+    }
+
+    @Test
+    public void slowSubscriberLosesTheOldestItems() {
+        RecordingSubscriber<Reading> subscriber = new RecordingSubscriber<Reading>(0);
+        mSource.subscribe(subscriber);
+        emit(0, 1, 2, 3, 4, 5, 6);
+
+        subscriber.mSubscription.request(Long.MAX_VALUE);
+        assertEquals(Arrays.asList(3, 4, 5, 6), values(subscriber.mItems));
+    }
+
+    @Test
+    public void cancelStopsDelivery() {
+        RecordingSubscriber<Reading> subscriber = new RecordingSubscriber<Reading>(Long.MAX_VALUE);
+        mSource.subscribe(subscriber);
+        emit(0);
+        subscriber.mSubscription.cancel();
+        emit(1);
+        mSource.complete();
+
+        assertEquals(Arrays.asList(0), values(subscriber.mItems));
+        assertFalse(subscriber.mCompleted);
+        assertFalse(mSource.hasSubscribers());
+    }
+
+    @Test
+    public void completeDeliversBufferedItemsFirst() {
+        RecordingSubscriber<Reading> subscriber = new RecordingSubscriber<Reading>(0);
+        mSource.subscribe(subscriber);
+        emit(0, 1);
+        mSource.complete();
+        assertFalse(subscriber.mCompleted);
+
+        subscriber.mSubscription.request(Long.MAX_VALUE);
+        assertEquals(Arrays.asList(0, 1), values(subscriber.mItems));
+        assertTrue(subscriber.mCompleted);
+    }
+
+    @Test
+    public void conflateKeepsTheLatest() {
+        RecordingSubscriber<Reading> subscriber = new RecordingSubscriber<Reading>(0);
+        PIStream.conflate(mSource).subscribe(subscriber);
+        emit(0, 1, 2);
+
+        subscriber.mSubscription.request(1);
+        assertEquals(Arrays.asList(2), values(subscriber.mItems));
+    }
+
+    @Test
+    public void bufferDeliversTheRemainderOnCompletion() {
+        RecordingSubscriber<List<Reading>> subscriber = new RecordingSubscriber<List<Reading>>(Long.MAX_VALUE);
+        PIStream.buffer(mSource, 2).subscribe(subscriber);
+        emit(0, 1, 2, 3, 4);
+        assertEquals(2, subscriber.mItems.size());
+
+        mSource.complete();
+        assertEquals(Arrays.asList(Arrays.asList(0, 1), Arrays.asList(2, 3), Arrays.asList(4)), lists(subscriber.mItems));
+        assertTrue(subscriber.mCompleted);
+    }
+
+    @Test
+    public void bufferDeliversAPartlyFilledListOnTime() throws InterruptedException {
+        RecordingSubscriber<List<Reading>> subscriber = new RecordingSubscriber<List<Reading>>(Long.MAX_VALUE);
+        PIStream.buffer(mSource, 10, TIMESPAN, mTimer).subscribe(subscriber);
+        emit(0, 1);
+
+        assertTrue("partly filled list not delivered", subscriber.awaitItems(1, 20 * TIMESPAN));
+        assertEquals(Arrays.asList(Arrays.asList(0, 1)), lists(subscriber.mItems));
+        assertFalse(subscriber.mCompleted);
+    }
+
+    @Test
+    public void windowsFollowTheItemsTimestamps() {
+        RecordingSubscriber<List<Reading>> subscriber = new RecordingSubscriber<List<Reading>>(Long.MAX_VALUE);
+        PIStream.window(mSource, TIMESPAN, null).subscribe(subscriber);
+        mSource.emit(new Reading(0, 1000));
+        mSource.emit(new Reading(1, 1050));
+        // nothing in range for a while, the empty windows are skipped
+        mSource.emit(new Reading(2, 1500));
+        mSource.emit(new Reading(3, 1599));
+        mSource.emit(new Reading(4, 1600));
+        mSource.complete();
+
+        assertEquals(Arrays.asList(Arrays.asList(0, 1), Arrays.asList(2, 3), Arrays.asList(4)), lists(subscriber.mItems));
+        assertTrue(subscriber.mCompleted);
+    }
+
+    @Test
+    public void lastWindowIsDeliveredWithoutAnotherItem() throws InterruptedException {
+        RecordingSubscriber<List<Reading>> subscriber = new RecordingSubscriber<List<Reading>>(Long.MAX_VALUE);
+        PIStream.window(mSource, TIMESPAN, mTimer).subscribe(subscriber);
+        long now = System.currentTimeMillis();
+        mSource.emit(new Reading(0, now));
+        mSource.emit(new Reading(1, now + 10));
+
+        assertTrue("last window not delivered", subscriber.awaitItems(1, 20 * TIMESPAN));
+        assertEquals(Arrays.asList(Arrays.asList(0, 1)), lists(subscriber.mItems));
+
+        // the next item opens a new window rather than joining the delivered one
+        mSource.emit(new Reading(2, now + 20));
+        mSource.complete();
+        assertEquals(Arrays.asList(Arrays.asList(0, 1), Arrays.asList(2)), lists(subscriber.mItems));
+    }
+
+    private void emit(int... values) {
+        for (int value : values) {
+            mSource.emit(new Reading(value, value));
+        }
+    }
+
+    private static List<Integer> values(List<Reading> readings) {
+        List<Integer> values = new ArrayList<Integer>();
+        for (Reading reading : readings) {
+            values.add(reading.mValue);
+        }
+        return values;
+    }
+
+    private static List<List<Integer>> lists(List<List<Reading>> lists) {
+        List<List<Integer>> values = new ArrayList<List<Integer>>();
+        for (List<Reading> list : lists) {
+            values.add(values(list));
+        }
+        return values;
+    }
+
+    private static class Reading implements PIStream.Timestamped {
+        private final int mValue;
+        private final long mTimestamp;
+
+        Reading(int value, long timestamp) {
+            mValue = value;
+            mTimestamp = timestamp;
+        }
+
+        @Override
+        public long getTimestamp() {
+            return mTimestamp;
+        }
+    }
+
+    private static class RecordingSubscriber<T> implements PIStream.Subscriber<T> {
+        private final long mInitialRequest;
+        private final List<T> mItems = new ArrayList<T>();
+        private final CountDownLatch mFirstItem = new CountDownLatch(1);
+        private PIStream.Subscription mSubscription;
+        private boolean mCompleted;
+
+        RecordingSubscriber(long initialRequest) {
+            mInitialRequest = initialRequest;
+        }
+
+        @Override
+        public void onSubscribe(PIStream.Subscription subscription) {
+            mSubscription = subscription;
+            if (mInitialRequest > 0) {
+                subscription.request(mInitialRequest);
+            }
+        }
+
+        @Override
+        public synchronized void onNext(T item) {
+            mItems.add(item);
+            mFirstItem.countDown();
+        }
+
+        @Override
+        public void onError(Throwable error) {
+            throw new AssertionError(error);
+        }
+
+        @Override
+        public synchronized void onComplete() {
+            mCompleted = true;
+        }
+
+        boolean awaitItems(int count, long timeout) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + timeout;
+            while (System.currentTimeMillis() < deadline) {
+                synchronized (this) {
+                    if (mItems.size() >= count) {
+                        return true;
+                    }
+                }
+                mFirstItem.await(10, TimeUnit.MILLISECONDS);
+            }
+            return false;
+        }
+    }
+}
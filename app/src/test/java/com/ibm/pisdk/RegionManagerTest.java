@@ -0,0 +1,134 @@
+/**
+ * Copyright (c) 2015 IBM Corporation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+package com.ibm.pisdk;
+
+import org.altbeacon.beacon.Beacon;
+import org.altbeacon.beacon.BeaconManager;
+import org.altbeacon.beacon.Identifier;
+import org.altbeacon.beacon.Region;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+/**
+ * Checks that every proximity UUID shares one ranging region, so there is one ranging callback per
+ * scan cycle whatever the number of UUIDs, and that the regions are monitored again when the beacon
+ * service is bound a second time.
+ *
+ * @author Ciaran Hannigan (cehannig@us.ibm.com)
+ */
+public class RegionManagerTest {
+    private static final int[] UUID_COUNTS = { 1, 8, 64 };
+    private static final int BEACONS_PER_CYCLE = 20;
+    private static final int FOREIGN_BEACONS_PER_CYCLE = 10;
+    private static final int CYCLES = 10;
+
+    @Test
+    public void oneRangingRegionWhateverTheUuidCount() throws Exception {
+        for (int uuidCount : UUID_COUNTS) {
+            BeaconManager beaconManager = mock(BeaconManager.class);
+            RegionManager regionManager = new RegionManager(beaconManager);
+            List<String> uuids = uuids(uuidCount);
+            regionManager.setUuids(uuids);
+            verify(beaconManager, times(uuidCount)).startMonitoringBeaconsInRegion(any(Region.class));
+            for (String uuid : uuids) {
+                regionManager.handleEnterRegion(new Region(uuid, Identifier.parse(uuid), null, null));
+            }
+            // a single wildcard ranging region, started with the first uuid region entered
+            verify(beaconManager, times(1)).startRangingBeaconsInRegion(any(Region.class));
+
+            // the organization's beacons are picked out of the one callback
+            runCycles(regionManager, cycle(uuids), CYCLES);
+            verify(beaconManager, times(1)).startRangingBeaconsInRegion(any(Region.class));
+            verify(beaconManager, never()).stopRangingBeaconsInRegion(any(Region.class));
+        }
+    }
+
+    @Test
+    public void reconnectMonitorsEveryRegionAgain() throws Exception {
+        BeaconManager beaconManager = mock(BeaconManager.class);
+        RegionManager regionManager = new RegionManager(beaconManager);
+        List<String> uuids = uuids(3);
+        regionManager.setUuids(uuids);
+        Region uuidRegion = new Region(uuids.get(0), Identifier.parse(uuids.get(0)), null, null);
+        regionManager.handleEnterRegion(uuidRegion);
+        regionManager.add(beacon(uuids.get(0), 1), 1.0, 1000);
+        verify(beaconManager, times(4)).startMonitoringBeaconsInRegion(any(Region.class));
+        verify(beaconManager, times(1)).startRangingBeaconsInRegion(any(Region.class));
+
+        // stop and start: the beacon service was unbound, the region manager kept its regions
+        regionManager.reconnect();
+        verify(beaconManager, times(8)).startMonitoringBeaconsInRegion(any(Region.class));
+        assertEquals(3, regionManager.getUuids().size());
+        assertEquals(1, regionManager.getBeaconRegionKeys().size());
+
+        // the first enter after the bind starts ranging again
+        regionManager.handleEnterRegion(uuidRegion);
+        verify(beaconManager, times(2)).startRangingBeaconsInRegion(any(Region.class));
+    }
+
+    private static void runCycles(RegionManager regionManager, List<Beacon> cycle, int cycles) {
+        long now = 0;
+        for (int i = 0; i < cycles; i++) {
+            now += 1100;
+            List<Beacon> beacons = regionManager.filter(cycle);
+            assertEquals(BEACONS_PER_CYCLE, beacons.size());
+            for (Beacon beacon : beacons) {
+                regionManager.add(beacon, 2.0, now);
+            }
+        }
+    }
+
+    // the same venue whatever the number of uuids: beacons of the first uuid, and some of other orgs
+    private static List<Beacon> cycle(List<String> uuids) {
+        List<Beacon> cycle = new ArrayList<Beacon>();
+        for (int minor = 0; minor < BEACONS_PER_CYCLE; minor++) {
+            cycle.add(beacon(uuids.get(0), minor));
+        }
+        for (int minor = 0; minor < FOREIGN_BEACONS_PER_CYCLE; minor++) {
+            cycle.add(beacon(UUID.randomUUID().toString(), minor));
+        }
+        return cycle;
+    }
+
+    private static List<String> uuids(int count) {
+        List<String> uuids = new ArrayList<String>(count);
+        for (int i = 0; i < count; i++) {
+            uuids.add(UUID.randomUUID().toString());
+        }
+        return uuids;
+    }
+
+    private static Beacon beacon(String uuid, int minor) {
+        return new Beacon.Builder()
+                .setId1(uuid)
+                .setId2("1")
+                .setId3(Integer.toString(minor))
+                .setRssi(-70)
+                .setTxPower(-59)
+                .build();
+    }
+}